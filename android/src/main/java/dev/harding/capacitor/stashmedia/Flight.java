@@ -0,0 +1,140 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * An in-flight download that concurrent requests for the same URL attach to instead of starting
+ * their own.
+ *
+ * Requests that join before the response arrives have the body spooled to a file for them while the
+ * first caller streams it. Requests that join once the body is already streaming have missed the
+ * start of it; they are released when the flight lands and fetch on their own, which normally ends
+ * up as a cache hit.
+ */
+class Flight {
+
+    /**
+     * A request waiting on the flight. Its tag is kept so that it can still be canceled, even though
+     * its own request was never sent.
+     */
+    static final class Joiner {
+
+        final String tag;
+        final StashMedia.MediaCallback callback;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        Joiner(String tag, StashMedia.MediaCallback callback) {
+            this.tag = tag;
+            this.callback = callback;
+        }
+
+        /**
+         * Claims the joiner for whoever completes it, so it is only ever completed once.
+         *
+         * @return false if it was already completed or canceled
+         */
+        boolean settle() {
+            return settled.compareAndSet(false, true);
+        }
+    }
+
+    private final List<Joiner> early = new ArrayList<>();
+    private final List<Joiner> late = new ArrayList<>();
+    private boolean started;
+
+    private OutputStream spoolSink;
+    private boolean spoolComplete;
+    private boolean spoolAborted;
+
+    synchronized void join(Joiner joiner) {
+        (started ? late : early).add(joiner);
+    }
+
+    /**
+     * Marks the response as arrived.
+     *
+     * @return the joiners that should be served from the spool
+     */
+    synchronized List<Joiner> takeOff() {
+        started = true;
+        return new ArrayList<>(early);
+    }
+
+    synchronized List<Joiner> lateJoiners() {
+        return new ArrayList<>(late);
+    }
+
+    /**
+     * Wraps the response so that everything the first caller reads is also written to {@code file}.
+     * The spool is best effort: if writing it fails it is abandoned, the joiners fetch on their own
+     * and the first caller keeps reading as if nothing happened.
+     */
+    MediaResponse spool(MediaResponse media, File file) throws IOException {
+        spoolSink = new FileOutputStream(file);
+
+        ForwardingSource tee = new ForwardingSource(media.source()) {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if (spoolAborted) {
+                    return read;
+                }
+                try {
+                    if (read == -1) {
+                        spoolSink.close();
+                        spoolComplete = true;
+                    } else {
+                        sink.copyTo(spoolSink, sink.size() - read, read);
+                    }
+                } catch (IOException e) {
+                    abortSpool(e);
+                }
+                return read;
+            }
+        };
+
+        return new MediaResponse(
+            Okio.buffer(tee),
+            media.contentType(),
+            media.etag(),
+            media.lastModified(),
+            media.contentLength(),
+            media.isFromCache(),
+            () -> {
+                try {
+                    spoolSink.close();
+                } catch (IOException e) {
+                    abortSpool(e);
+                } finally {
+                    media.close();
+                }
+            }
+        );
+    }
+
+    private void abortSpool(IOException e) {
+        Log.e("StashMedia", "Failed to spool shared download, joiners will fetch on their own: " + e.getMessage());
+        spoolAborted = true;
+        try {
+            spoolSink.close();
+        } catch (IOException ignored) {}
+    }
+
+    boolean isSpoolComplete() {
+        return spoolComplete;
+    }
+
+    boolean isSpoolAborted() {
+        return spoolAborted;
+    }
+}
@@ -0,0 +1,141 @@
+package dev.harding.capacitor.stashmedia;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learns how many batch downloads each host sustains, AIMD style. Completed downloads are grouped
+ * into windows of about one per parallel slot. After each window the limit is halved if too many
+ * downloads failed, or if the last increase made the host's aggregate throughput fall; otherwise
+ * it grows by one.
+ *
+ * The state outlives a batch, so the next batch to the same host starts where the last one left
+ * off. A window the host sat idle in is discarded, since the gap between batches says nothing
+ * about the host.
+ */
+class HostConcurrency {
+
+    // Throughput may dip this much before the limit is cut, so noise alone does not shrink it
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double MAX_ERROR_RATE = 0.2;
+    private static final long IDLE_NANOS = 1_000_000_000L;
+
+    private static final class Host {
+
+        int limit;
+        int inFlight;
+        long lastActivity;
+        long windowStart;
+        long windowBytes;
+        int windowCompleted;
+        int windowErrors;
+        long lastBytesPerSecond;
+        boolean lastIncreased;
+
+        Host(int limit) {
+            this.limit = limit;
+            this.lastActivity = System.nanoTime();
+            this.windowStart = lastActivity;
+        }
+    }
+
+    private final TransferProfile profile;
+    private final int maxLimit;
+    private final TransferProfile.Observer observer;
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    /**
+     * @param maxRequestsPerHost the dispatcher's limit, which the learned limit never exceeds since
+     *     anything above it would only queue inside OkHttp
+     */
+    HostConcurrency(TransferProfile profile, int maxRequestsPerHost, TransferProfile.Observer observer) {
+        this.profile = profile;
+        this.maxLimit = Math.max(1, Math.min(profile.maxConcurrencyPerHost, maxRequestsPerHost));
+        this.observer = observer;
+    }
+
+    synchronized int limit(String host) {
+        return host(host).limit;
+    }
+
+    synchronized void onStart(String host) {
+        Host state = host(host);
+        long now = System.nanoTime();
+        if (state.inFlight++ == 0 && now - state.lastActivity > IDLE_NANOS) {
+            resetWindow(state, now);
+        }
+        state.lastActivity = now;
+    }
+
+    /**
+     * @param bytes downloaded, 0 if the download failed
+     */
+    void onComplete(String host, long bytes, boolean failed) {
+        TransferProfile.Decision decision;
+        synchronized (this) {
+            Host state = host(host);
+            state.inFlight--;
+            state.lastActivity = System.nanoTime();
+            state.windowBytes += bytes;
+            state.windowCompleted++;
+            if (failed) {
+                state.windowErrors++;
+            }
+
+            if (state.windowCompleted < Math.max(2, state.limit)) {
+                return;
+            }
+            decision = decide(host, state);
+        }
+
+        if (decision != null && observer != null) {
+            observer.onDecision(decision);
+        }
+    }
+
+    private TransferProfile.Decision decide(String host, Host state) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - state.windowStart);
+        long bytesPerSecond = (long) (state.windowBytes * 1_000_000_000.0 / elapsed);
+        double errorRate = state.windowErrors / (double) state.windowCompleted;
+
+        int previous = state.limit;
+        String reason;
+        if (errorRate > MAX_ERROR_RATE) {
+            state.limit = Math.max(1, (int) (state.limit * DECREASE_FACTOR));
+            reason = "errors";
+        } else if (state.lastIncreased && bytesPerSecond < state.lastBytesPerSecond * (1 - THROUGHPUT_TOLERANCE)) {
+            state.limit = Math.max(1, (int) (state.limit * DECREASE_FACTOR));
+            reason = "throughput dropped";
+        } else {
+            state.limit = Math.min(maxLimit, state.limit + 1);
+            reason = "throughput held";
+        }
+
+        state.lastBytesPerSecond = bytesPerSecond;
+        state.lastIncreased = state.limit > previous;
+        resetWindow(state, now);
+
+        if (state.limit == previous) {
+            return null;
+        }
+        return new TransferProfile.Decision(TransferProfile.CONCURRENCY, host, previous, state.limit, bytesPerSecond, errorRate, reason);
+    }
+
+    private static void resetWindow(Host state, long now) {
+        state.windowStart = now;
+        state.windowBytes = 0;
+        state.windowCompleted = 0;
+        state.windowErrors = 0;
+    }
+
+    private Host host(String host) {
+        Host state = hosts.get(host);
+        if (state == null) {
+            state = new Host(Math.min(maxLimit, Math.max(1, profile.initialConcurrency)));
+            hosts.put(host, state);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,287 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import java.io.IOException;
+import java.util.Locale;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Shrinks and/or re-encodes an image on its way to the destination. The image is measured with a
+ * bounds-only decode, decoded at the smallest power-of-two sample size that still covers
+ * {@code maxDimension}, and encoded straight into the destination sink. Images that already fit
+ * and are in the requested format are copied through untouched.
+ *
+ * Android can only encode JPEG, PNG and WebP stills, so any other source that has to be re-encoded,
+ * such as a GIF or HEIC resized without a {@code format}, comes out as a single-frame JPEG.
+ */
+final class ImageTranscoder {
+
+    static final int DEFAULT_QUALITY = 85;
+
+    static final class Options {
+
+        final int maxDimension;
+        final String format;
+        final int quality;
+
+        private Options(int maxDimension, String format, int quality) {
+            this.maxDimension = maxDimension;
+            this.format = format;
+            this.quality = quality;
+        }
+
+        /**
+         * @param maxDimension longest edge in pixels, or null to keep the original size
+         * @param format jpeg, webp or png, or null to keep the original format when possible
+         * @param quality 0-100, or null for {@link #DEFAULT_QUALITY}; ignored for png
+         * @return null when nothing was requested
+         * @throws IllegalArgumentException for values that cannot be honored
+         */
+        static Options from(Integer maxDimension, String format, Integer quality) {
+            if (maxDimension == null && format == null && quality == null) {
+                return null;
+            }
+            if (maxDimension != null && maxDimension <= 0) {
+                throw new IllegalArgumentException("maxDimension must be greater than 0");
+            }
+            if (quality != null && (quality < 0 || quality > 100)) {
+                throw new IllegalArgumentException("quality must be between 0 and 100");
+            }
+            if (format != null) {
+                format = format.toLowerCase(Locale.US);
+                if ("avif".equals(format)) {
+                    // Android can decode AVIF (API 31+) but has no encoder for it
+                    throw new IllegalArgumentException("AVIF encoding is not supported on Android");
+                }
+                if (!"jpeg".equals(format) && !"webp".equals(format) && !"png".equals(format)) {
+                    throw new IllegalArgumentException("Unsupported format: " + format);
+                }
+            }
+
+            return new Options(maxDimension != null ? maxDimension : 0, format, quality != null ? quality : -1);
+        }
+
+        /**
+         * Key the content index stores saves under, so a resized save is not mistaken for the
+         * original.
+         */
+        String indexKey(String url) {
+            return url + " maxDimension=" + maxDimension + " format=" + format + " quality=" + quality;
+        }
+
+        /**
+         * The MIME type of what {@link #transcode} writes for a source of the given type.
+         */
+        String outputMimeType(String sourceMimeType) {
+            if (format != null) {
+                return "image/" + format;
+            }
+            if ("image/jpeg".equals(sourceMimeType) || "image/png".equals(sourceMimeType) || "image/webp".equals(sourceMimeType)) {
+                return sourceMimeType;
+            }
+            return "image/jpeg";
+        }
+    }
+
+    private ImageTranscoder() {}
+
+    /**
+     * Writes the image to {@code sink} and flushes it. The sink is not closed.
+     */
+    static Transfer.Stats transcode(BufferedSource source, String sourceMimeType, Options options, Sink sink, Metrics metrics)
+        throws IOException {
+        long start = System.nanoTime();
+
+        BitmapFactory.Options bounds = bounds(source);
+        if (bounds == null) {
+            throw new IOException("Failed to decode image. Format may not be supported on this Android version.");
+        }
+
+        if (passesThrough(bounds, sourceMimeType, options)) {
+            return Transfer.copy(source, sink);
+        }
+
+        String outputMimeType = options.outputMimeType(sourceMimeType);
+        if (!outputMimeType.equals(sourceMimeType)) {
+            Log.w("StashMedia", "Re-encoding " + sourceMimeType + " as " + outputMimeType + ", keeping only its first frame");
+        }
+        Bitmap bitmap = decodeToFit(source, bounds, options.maxDimension, metrics);
+        try {
+            long encodeStart = Metrics.start();
+            CountingSink counting = new CountingSink(sink);
+            BufferedSink out = Okio.buffer(counting);
+            int quality = options.quality != -1 ? options.quality : DEFAULT_QUALITY;
+            if (!bitmap.compress(compressFormat(outputMimeType), quality, out.outputStream())) {
+                throw new IOException("Failed to encode image as " + outputMimeType);
+            }
+            out.flush();
+            metrics.recordSince(Metrics.IMAGE_ENCODE, encodeStart);
+
+            return new Transfer.Stats(counting.bytes, System.nanoTime() - start);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Decodes the image at the smallest power-of-two sample size that still covers
+     * {@code maxDimension}, then scales it down to fit exactly.
+     *
+     * @param maxDimension longest edge in pixels, or 0 for the original size
+     */
+    static Bitmap decodeToFit(BufferedSource source, int maxDimension, Metrics metrics) throws IOException {
+        BitmapFactory.Options bounds = bounds(source);
+        if (bounds == null) {
+            throw new IOException("Failed to decode image. Format may not be supported on this Android version.");
+        }
+        return decodeToFit(source, bounds, maxDimension, metrics);
+    }
+
+    private static Bitmap decodeToFit(BufferedSource source, BitmapFactory.Options bounds, int maxDimension, Metrics metrics)
+        throws IOException {
+        BitmapFactory.Options decode = new BitmapFactory.Options();
+        decode.inSampleSize = sampleSize(bounds, maxDimension);
+        long decodeStart = Metrics.start();
+        Bitmap bitmap = BitmapFactory.decodeStream(source.inputStream(), null, decode);
+        metrics.recordSince(Metrics.IMAGE_DECODE, decodeStart);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode image. Format may not be supported on this Android version.");
+        }
+        return scaleToFit(bitmap, maxDimension);
+    }
+
+    /**
+     * Peak memory {@link #transcode} holds for the image: the sampled decode, the scaled copy made
+     * from it, and the transfer buffers.
+     */
+    static long memoryCost(BufferedSource source, String sourceMimeType, Options options) throws IOException {
+        BitmapFactory.Options bounds = bounds(source);
+        if (bounds == null || passesThrough(bounds, sourceMimeType, options)) {
+            // Undecodable images fail before allocating anything
+            return ResourceGovernor.BUFFER_COST;
+        }
+        return decodeCost(bounds, options.maxDimension) + ResourceGovernor.BUFFER_COST;
+    }
+
+    /**
+     * Peak memory of {@link #decodeToFit}.
+     */
+    static long decodeToFitCost(BufferedSource source, int maxDimension) throws IOException {
+        BitmapFactory.Options bounds = bounds(source);
+        return bounds == null ? ResourceGovernor.BUFFER_COST : decodeCost(bounds, maxDimension);
+    }
+
+    private static long decodeCost(BitmapFactory.Options bounds, int maxDimension) {
+        int sampleSize = sampleSize(bounds, maxDimension);
+        long cost = bitmapBytes(bounds.outWidth / sampleSize, bounds.outHeight / sampleSize);
+        int longest = Math.max(bounds.outWidth, bounds.outHeight) / sampleSize;
+        if (maxDimension != 0 && longest > maxDimension) {
+            float scale = (float) maxDimension / longest;
+            cost += bitmapBytes(Math.round(bounds.outWidth / sampleSize * scale), Math.round(bounds.outHeight / sampleSize * scale));
+        }
+        return cost;
+    }
+
+    /**
+     * Memory of decoding the image at full size.
+     */
+    static long decodedBytes(BufferedSource source) throws IOException {
+        BitmapFactory.Options bounds = bounds(source);
+        return bounds == null ? ResourceGovernor.BUFFER_COST : bitmapBytes(bounds.outWidth, bounds.outHeight);
+    }
+
+    /**
+     * @return null if the image cannot be decoded
+     */
+    private static BitmapFactory.Options bounds(BufferedSource source) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        // Peeking buffers only the header bytes the decoder asks for; the real decode re-reads them
+        BitmapFactory.decodeStream(source.peek().inputStream(), null, bounds);
+        return bounds.outWidth > 0 && bounds.outHeight > 0 ? bounds : null;
+    }
+
+    private static boolean passesThrough(BitmapFactory.Options bounds, String sourceMimeType, Options options) {
+        return (
+            fits(bounds, options.maxDimension) && options.outputMimeType(sourceMimeType).equals(sourceMimeType) && options.quality == -1
+        );
+    }
+
+    private static boolean fits(BitmapFactory.Options bounds, int maxDimension) {
+        return maxDimension == 0 || Math.max(bounds.outWidth, bounds.outHeight) <= maxDimension;
+    }
+
+    private static int sampleSize(BitmapFactory.Options bounds, int maxDimension) {
+        return fits(bounds, maxDimension) ? 1 : sampleSize(Math.max(bounds.outWidth, bounds.outHeight), maxDimension);
+    }
+
+    /**
+     * ARGB_8888, the decoder's default.
+     */
+    private static long bitmapBytes(int width, int height) {
+        return (long) width * height * 4;
+    }
+
+    /**
+     * Largest power of two that keeps the decoded image at least {@code maxDimension} on its
+     * longest edge, so the final scale is always a downscale.
+     */
+    static int sampleSize(int longest, int maxDimension) {
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap scaleToFit(Bitmap bitmap, int maxDimension) {
+        int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (maxDimension == 0 || longest <= maxDimension) {
+            return bitmap;
+        }
+
+        float scale = (float) maxDimension / longest;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    @SuppressWarnings("deprecation")
+    static Bitmap.CompressFormat compressFormat(String mimeType) {
+        switch (mimeType) {
+            case "image/png":
+                return Bitmap.CompressFormat.PNG;
+            case "image/webp":
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    private static final class CountingSink extends ForwardingSink {
+
+        long bytes;
+
+        CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            bytes += byteCount;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import okhttp3.HttpUrl;
+
+/**
+ * Saves many photos/videos in one go. Downloads are staged to disk in parallel, at most
+ * {@code concurrency} at a time per host or as many as {@link HostConcurrency} allows, and once
+ * every item has settled the gallery rows are created with a single
+ * {@link ContentResolver#applyBatch} call.
+ */
+class MediaBatch {
+
+    static final String KIND_PHOTO = "photo";
+    static final String KIND_VIDEO = "video";
+
+    static final class Item {
+
+        final int index;
+        final String url;
+        final String kind;
+
+        String mimeType;
+        File stagedFile;
+        long bytes;
+        Uri uri;
+        String error;
+
+        Item(int index, String url, String kind) {
+            this.index = index;
+            this.url = url;
+            this.kind = kind;
+        }
+    }
+
+    interface BatchCallback {
+        /**
+         * Called once every item has either been saved or failed.
+         */
+        void onComplete(List<Item> items, long elapsedMillis);
+    }
+
+    private final StashMedia stashMedia;
+    private final Context context;
+    private final List<Item> items;
+    private final int concurrency;
+    private final HostConcurrency adaptive;
+    private final BatchCallback callback;
+    private final File stagingDir;
+
+    private final Map<String, ArrayDeque<Item>> pendingByHost = new HashMap<>();
+    private final Map<String, Integer> activeByHost = new HashMap<>();
+    private int remaining;
+    private long startTime;
+
+    /**
+     * @param adaptive decides the per-host limit instead of {@code concurrency}, or null
+     */
+    MediaBatch(StashMedia stashMedia, Context context, List<Item> items, int concurrency, HostConcurrency adaptive, BatchCallback callback) {
+        this.stashMedia = stashMedia;
+        this.context = context;
+        this.items = items;
+        this.concurrency = Math.max(1, concurrency);
+        this.adaptive = adaptive;
+        this.callback = callback;
+        this.stagingDir = stagingDir(context);
+    }
+
+    private static File stagingDir(Context context) {
+        return new File(context.getCacheDir(), "stash-media-batch");
+    }
+
+    /**
+     * Deletes staged downloads left behind by a previous process. Staged files only live as long as
+     * their batch, so this must run before the first batch starts.
+     */
+    static void sweep(Context context) {
+        File[] staleFiles = stagingDir(context).listFiles();
+        if (staleFiles != null) {
+            for (File file : staleFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    void start() {
+        startTime = SystemClock.elapsedRealtime();
+        stagingDir.mkdirs();
+
+        List<Item> ready = new ArrayList<>();
+        synchronized (this) {
+            remaining = items.size();
+            for (Item item : items) {
+                HttpUrl httpUrl = item.url == null ? null : HttpUrl.parse(item.url);
+                if (httpUrl == null) {
+                    item.error = "Invalid URL";
+                    remaining--;
+                    continue;
+                }
+                if (!KIND_PHOTO.equals(item.kind) && !KIND_VIDEO.equals(item.kind)) {
+                    item.error = "Invalid kind: " + item.kind;
+                    remaining--;
+                    continue;
+                }
+
+                pendingByHost.computeIfAbsent(httpUrl.host(), host -> new ArrayDeque<>()).add(item);
+            }
+
+            for (String host : pendingByHost.keySet()) {
+                ready.addAll(takeReady(host));
+            }
+        }
+
+        if (ready.isEmpty()) {
+            finish();
+            return;
+        }
+
+        for (Item item : ready) {
+            download(item);
+        }
+    }
+
+    private List<Item> takeReady(String host) {
+        List<Item> ready = new ArrayList<>();
+        ArrayDeque<Item> pending = pendingByHost.get(host);
+        int active = activeByHost.getOrDefault(host, 0);
+        int limit = adaptive != null ? adaptive.limit(host) : concurrency;
+
+        while (active < limit && pending != null && !pending.isEmpty()) {
+            ready.add(pending.poll());
+            active++;
+        }
+
+        activeByHost.put(host, active);
+        return ready;
+    }
+
+    private void download(Item item) {
+        if (adaptive != null) {
+            adaptive.onStart(HttpUrl.parse(item.url).host());
+        }
+
+        stashMedia.fetch(
+            item.url,
+            new StashMedia.MediaCallback() {
+                @Override
+                public void onResponse(MediaResponse media) {
+                    boolean transferred = stage(item, media);
+                    settled(item, !transferred);
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    item.error = "Failed to fetch data: " + e.getMessage();
+                    settled(item, true);
+                }
+            }
+        );
+    }
+
+    /**
+     * @return false if the transfer itself failed, as opposed to the item being turned away
+     */
+    private boolean stage(Item item, MediaResponse media) {
+        item.mimeType = media.contentType();
+        if (KIND_VIDEO.equals(item.kind) && !MediaTypes.isVideo(item.mimeType)) {
+            item.error = "URL does not point to a valid video file";
+            return true;
+        }
+        if (MediaTypes.collection(item.mimeType) == null) {
+            item.error = "Not an image or video: " + item.mimeType;
+            return true;
+        }
+
+        File file = new File(stagingDir, UUID.randomUUID().toString());
+        try {
+            ResourceGovernor.Lease lease = stashMedia.governor().acquire(ResourceGovernor.BUFFER_COST, true);
+            try {
+                item.bytes = Transfer.copy(media.source(), file).bytes;
+            } finally {
+                lease.close();
+            }
+            VerifyingSource.checkLength(media.contentLength(), item.bytes);
+            item.stagedFile = file;
+            return true;
+        } catch (IOException e) {
+            file.delete();
+            item.error = "Failed to download: " + e.getMessage();
+            // Being turned away by the governor says nothing about the host
+            return StashMediaException.BUSY.equals(StashMediaException.code(e));
+        }
+    }
+
+    /**
+     * @param failed whether the download failed in a way that counts against the host
+     */
+    private void settled(Item item, boolean failed) {
+        String host = HttpUrl.parse(item.url).host();
+        if (adaptive != null) {
+            // Before taking more work, so that it already runs at the new limit
+            adaptive.onComplete(host, failed ? 0 : item.bytes, failed);
+        }
+
+        List<Item> next;
+        boolean done;
+
+        synchronized (this) {
+            activeByHost.put(host, activeByHost.get(host) - 1);
+            next = takeReady(host);
+            done = --remaining == 0;
+        }
+
+        for (Item nextItem : next) {
+            download(nextItem);
+        }
+
+        if (done) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        List<Item> staged = new ArrayList<>();
+        for (Item item : items) {
+            if (item.stagedFile != null) {
+                staged.add(item);
+            }
+        }
+
+        try {
+            if (!staged.isEmpty()) {
+                insertAll(staged);
+            }
+        } finally {
+            // Whatever went wrong above, the batch still answers for every item
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            callback.onComplete(items, elapsed);
+        }
+    }
+
+    private void insertAll(List<Item> staged) {
+        ContentResolver resolver = context.getContentResolver();
+        // Suffixed with the item's index, so names stay unique within the batch as well
+        String dateTimeString = StashMedia.timestamp();
+        boolean pending = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>();
+        for (Item item : staged) {
+            // Goes by what was downloaded, so a photo that turns out to be an MP4 lands among videos
+            boolean video = MediaTypes.isVideo(item.mimeType);
+            ContentProviderOperation.Builder insert = ContentProviderOperation.newInsert(MediaTypes.collection(item.mimeType))
+                .withValue(MediaStore.MediaColumns.DISPLAY_NAME, (video ? "Video_" : "Image_") + dateTimeString + "_" + (item.index + 1))
+                .withValue(MediaStore.MediaColumns.MIME_TYPE, item.mimeType);
+            if (pending) {
+                // Keep rows hidden from other apps until their contents are written
+                insert.withValue(MediaStore.MediaColumns.IS_PENDING, 1);
+            }
+            inserts.add(insert.build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            long insertStart = Metrics.start();
+            results = resolver.applyBatch(MediaStore.AUTHORITY, inserts);
+            stashMedia.metrics().recordSince(Metrics.MEDIASTORE_INSERT, insertStart);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            // The provider also throws unchecked, such as a SecurityException or an
+            // IllegalArgumentException for a collection it refuses
+            Log.e("StashMedia", "Failed to insert batch: " + e.getMessage());
+            for (Item item : staged) {
+                item.error = "Failed to create media URI: " + e.getMessage();
+                item.stagedFile.delete();
+            }
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> publishes = new ArrayList<>();
+        ArrayList<ContentProviderOperation> deletes = new ArrayList<>();
+        List<Item> written = new ArrayList<>();
+        for (int i = 0; i < staged.size(); i++) {
+            Item item = staged.get(i);
+            Uri uri = results[i].uri;
+
+            if (uri == null) {
+                item.error = "Failed to create media URI";
+            } else if (write(resolver, item, uri)) {
+                item.uri = uri;
+                written.add(item);
+                if (pending) {
+                    publishes.add(ContentProviderOperation.newUpdate(uri).withValue(MediaStore.MediaColumns.IS_PENDING, 0).build());
+                }
+            } else {
+                deletes.add(ContentProviderOperation.newDelete(uri).build());
+            }
+
+            item.stagedFile.delete();
+        }
+
+        if (!publishes.isEmpty()) {
+            try {
+                resolver.applyBatch(MediaStore.AUTHORITY, publishes);
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                // Rows that stayed pending are invisible and would be purged by the system after a
+                // week; drop them now and report the items as failed instead
+                Log.e("StashMedia", "Failed to publish batch: " + e.getMessage());
+                for (Item item : written) {
+                    item.error = "Failed to publish: " + e.getMessage();
+                    deletes.add(ContentProviderOperation.newDelete(item.uri).build());
+                    item.uri = null;
+                }
+            }
+        }
+
+        if (!deletes.isEmpty()) {
+            try {
+                resolver.applyBatch(MediaStore.AUTHORITY, deletes);
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                // One row the provider refuses takes the whole batch down; go through them one by one
+                Log.e("StashMedia", "Failed to delete unfinished rows: " + e.getMessage());
+                for (ContentProviderOperation delete : deletes) {
+                    try {
+                        resolver.delete(delete.getUri(), null, null);
+                    } catch (RuntimeException e2) {
+                        Log.e("StashMedia", "Failed to delete unfinished " + delete.getUri() + ": " + e2.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean write(ContentResolver resolver, Item item, Uri uri) {
+        try {
+            Transfer.Stats stats;
+            ResourceGovernor.Lease lease = stashMedia.governor().acquire(ResourceGovernor.BUFFER_COST, true);
+            try {
+                stats = Transfer.copy(item.stagedFile, resolver, uri);
+            } finally {
+                lease.close();
+            }
+            stashMedia.metrics().recordDuration(Metrics.MEDIASTORE_WRITE, stats.elapsedNanos);
+            VerifyingSource.checkLength(item.bytes, stats.bytes);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            item.error = "Failed to save: " + e.getMessage();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * Size-bounded LRU disk cache for downloaded media.
+ *
+ * Entries are looked up by URL. The file backing an entry is named after a hash of the URL and its
+ * validators (ETag / Last-Modified), so a resource that changed upstream never reuses a stale file.
+ * Only responses that carry a validator are stored, since every hit is revalidated with a conditional
+ * request before it is served.
+ */
+class MediaCache {
+
+    private static final String TAG = "StashMedia";
+    private static final String INDEX_FILE = "index";
+
+    static final class Entry {
+
+        final String url;
+        final String etag;
+        final String lastModified;
+        final String contentType;
+        final long length;
+        final String fileName;
+
+        Entry(String url, String etag, String lastModified, String contentType, long length, String fileName) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.length = length;
+            this.fileName = fileName;
+        }
+    }
+
+    private final File directory;
+    private final long maxSize;
+    private final long maxEntrySize;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    MediaCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxSize / 4;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Failed to create cache directory " + directory);
+        }
+
+        readIndex();
+    }
+
+    /**
+     * Returns the entry for the given URL if its file is still on disk. Does not count as a hit until
+     * the caller has revalidated it, see {@link #recordHit(Entry)}.
+     */
+    synchronized Entry get(String url) {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            return null;
+        }
+
+        if (!file(entry).isFile()) {
+            remove(url);
+            return null;
+        }
+
+        return entry;
+    }
+
+    File file(Entry entry) {
+        return new File(directory, entry.fileName);
+    }
+
+    void recordHit(Entry entry) {
+        hits.incrementAndGet();
+        synchronized (this) {
+            // Refresh LRU position
+            entries.get(entry.url);
+        }
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Starts writing a new entry for a response, or returns null if the response cannot be cached:
+     * it has no validator, it is marked no-store, or it is larger than a quarter of the cache.
+     */
+    Editor edit(String url, String etag, String lastModified, String contentType, String cacheControl, long contentLength) {
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+            return null;
+        }
+        if (contentLength > maxEntrySize) {
+            return null;
+        }
+
+        String fileName = sha256(url + "\n" + etag + "\n" + lastModified);
+        File tmp = new File(directory, fileName + "." + UUID.randomUUID() + ".tmp");
+
+        try {
+            return new Editor(new Entry(url, etag, lastModified, contentType, contentLength, fileName), tmp);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open cache entry: " + e.getMessage());
+            return null;
+        }
+    }
+
+    synchronized void remove(String url) {
+        Entry entry = entries.remove(url);
+        if (entry != null) {
+            size -= entry.length;
+            deleteIfUnused(entry.fileName);
+            writeIndex();
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), entries.size(), size, maxSize);
+    }
+
+    static final class Stats {
+
+        final long hits;
+        final long misses;
+        final long evictions;
+        final int entryCount;
+        final long size;
+        final long maxSize;
+
+        Stats(long hits, long misses, long evictions, int entryCount, long size, long maxSize) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entryCount = entryCount;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+    }
+
+    private synchronized void commit(Entry entry, File tmp) {
+        File target = new File(directory, entry.fileName);
+        if (!tmp.renameTo(target)) {
+            Log.e(TAG, "Failed to commit cache entry for " + entry.url);
+            tmp.delete();
+            return;
+        }
+
+        Entry previous = entries.put(entry.url, entry);
+        if (previous != null) {
+            size -= previous.length;
+            if (!previous.fileName.equals(entry.fileName)) {
+                deleteIfUnused(previous.fileName);
+            }
+        }
+        size += entry.length;
+
+        trimToSize();
+        writeIndex();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            size -= eldest.length;
+            deleteIfUnused(eldest.fileName);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void deleteIfUnused(String fileName) {
+        for (Entry entry : entries.values()) {
+            if (entry.fileName.equals(fileName)) {
+                return;
+            }
+        }
+        new File(directory, fileName).delete();
+    }
+
+    private void readIndex() {
+        File index = new File(directory, INDEX_FILE);
+        if (index.isFile()) {
+            try (
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))
+            ) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 6) {
+                        continue;
+                    }
+
+                    Entry entry = new Entry(
+                        fields[0],
+                        emptyToNull(fields[1]),
+                        emptyToNull(fields[2]),
+                        emptyToNull(fields[3]),
+                        Long.parseLong(fields[4]),
+                        fields[5]
+                    );
+                    if (new File(directory, entry.fileName).isFile()) {
+                        entries.put(entry.url, entry);
+                        size += entry.length;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                Log.e(TAG, "Failed to read cache index, starting empty: " + e.getMessage());
+                entries.clear();
+                size = 0;
+            }
+        }
+
+        // Anything on disk that the index does not know about is garbage from a previous process
+        File[] files = directory.listFiles();
+        if (files != null) {
+            List<String> known = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                known.add(entry.fileName);
+            }
+            for (File file : files) {
+                if (!file.getName().equals(INDEX_FILE) && !known.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        trimToSize();
+    }
+
+    private void writeIndex() {
+        File tmp = new File(directory, INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.url);
+                writer.write('\t');
+                writer.write(nullToEmpty(entry.etag));
+                writer.write('\t');
+                writer.write(nullToEmpty(entry.lastModified));
+                writer.write('\t');
+                writer.write(nullToEmpty(entry.contentType));
+                writer.write('\t');
+                writer.write(Long.toString(entry.length));
+                writer.write('\t');
+                writer.write(entry.fileName);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write cache index: " + e.getMessage());
+            return;
+        }
+
+        if (!tmp.renameTo(new File(directory, INDEX_FILE))) {
+            Log.e(TAG, "Failed to replace cache index");
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a new entry as the response body is consumed. The entry is committed only if the body
+     * was read to the end; anything else leaves the cache untouched.
+     */
+    final class Editor {
+
+        private final Entry entry;
+        private final File tmp;
+        private final OutputStream out;
+        private long written;
+        private boolean done;
+
+        private Editor(Entry entry, File tmp) throws IOException {
+            this.entry = entry;
+            this.tmp = tmp;
+            this.out = new FileOutputStream(tmp);
+        }
+
+        Source tee(Source source) {
+            return new ForwardingSource(source) {
+                private boolean complete;
+
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read == -1) {
+                        complete = true;
+                    } else {
+                        write(sink, sink.size() - read, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (complete) {
+                            commit();
+                        } else {
+                            abort();
+                        }
+                    }
+                }
+            };
+        }
+
+        private void write(Buffer buffer, long offset, long byteCount) {
+            if (done) {
+                return;
+            }
+
+            written += byteCount;
+            if (written > maxEntrySize) {
+                abort();
+                return;
+            }
+
+            try {
+                // Straight from the segment arrays. Sharing the segments into another Buffer would
+                // keep them out of Okio's pool and cost a fresh allocation for every segment read
+                buffer.copyTo(out, offset, byteCount);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write cache entry: " + e.getMessage());
+                abort();
+            }
+        }
+
+        void commit() {
+            if (done) {
+                return;
+            }
+            done = true;
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                tmp.delete();
+                return;
+            }
+
+            MediaCache.this.commit(
+                new Entry(entry.url, entry.etag, entry.lastModified, entry.contentType, written, entry.fileName),
+                tmp
+            );
+        }
+
+        void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            tmp.delete();
+        }
+    }
+}
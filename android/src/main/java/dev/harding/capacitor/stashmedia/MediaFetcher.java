@@ -0,0 +1,388 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Fetches URLs through the media cache. A cached copy is revalidated with a conditional request and
+ * served from disk when the server answers 304 Not Modified. Concurrent fetches of the same URL
+ * share a single download, see {@link Flight}.
+ *
+ * Needs no {@code Context}, so the download path can be exercised on a plain JVM.
+ */
+class MediaFetcher {
+
+    private final OkHttpClient client;
+    private final MediaCache cache;
+    private final File spoolDir;
+    private final Executor executor;
+    private final Map<String, Flight> flights = new HashMap<>();
+    // Joiners by tag, guarded by flights. They have no request of their own to cancel.
+    private final Map<String, List<Flight.Joiner>> joiners = new HashMap<>();
+
+    /**
+     * @param spoolDir where bodies shared between concurrent fetches are buffered
+     * @param executor serves fetches that joined another one
+     */
+    MediaFetcher(OkHttpClient client, MediaCache cache, File spoolDir, Executor executor) {
+        this.client = client;
+        this.cache = cache;
+        this.spoolDir = spoolDir;
+        this.executor = executor;
+
+        // Spools only live as long as their flight, anything left over is from a previous process
+        File[] staleSpools = spoolDir.listFiles();
+        if (staleSpools != null) {
+            for (File spool : staleSpools) {
+                spool.delete();
+            }
+        }
+    }
+
+    /**
+     * @param tag attached to the OkHttp request, so the call can be canceled by tag
+     */
+    void fetch(String url, String tag, StashMedia.MediaCallback callback) {
+        Flight flight;
+        synchronized (flights) {
+            Flight inFlight = flights.get(url);
+            if (inFlight != null) {
+                Log.d("StashMedia", "Joining in-flight download of " + url);
+                Flight.Joiner joiner = new Flight.Joiner(tag, callback);
+                inFlight.join(joiner);
+                if (tag != null) {
+                    List<Flight.Joiner> tagged = joiners.get(tag);
+                    if (tagged == null) {
+                        tagged = new ArrayList<>();
+                        joiners.put(tag, tagged);
+                    }
+                    tagged.add(joiner);
+                }
+                return;
+            }
+
+            flight = new Flight();
+            flights.put(url, flight);
+        }
+
+        MediaCache.Entry cached = cache.get(url);
+
+        client.newCall(buildRequest(url, cached, tag)).enqueue(
+            new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    try {
+                        callback.onFailure(e);
+                    } finally {
+                        land(url, flight, flight.takeOff(), null, null, joinerError(call, e));
+                    }
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    MediaResponse media;
+                    try {
+                        media = readThrough(url, cached, response);
+                    } catch (IOException e) {
+                        try {
+                            callback.onFailure(e);
+                        } finally {
+                            land(url, flight, flight.takeOff(), null, null, joinerError(call, e));
+                        }
+                        return;
+                    }
+
+                    List<Flight.Joiner> joiners = flight.takeOff();
+                    File spool = null;
+                    if (!joiners.isEmpty()) {
+                        spool = new File(spoolDir, UUID.randomUUID().toString());
+                        try {
+                            spoolDir.mkdirs();
+                            media = flight.spool(media, spool);
+                        } catch (IOException e) {
+                            Log.e("StashMedia", "Failed to spool shared download: " + e.getMessage());
+                            spool.delete();
+                            spool = null;
+                        }
+                    }
+
+                    try {
+                        callback.onResponse(media);
+
+                        if (spool != null && !flight.isSpoolComplete() && !flight.isSpoolAborted()) {
+                            // The first caller stopped reading early, finish the body for the others
+                            media.source().readAll(Okio.blackhole());
+                        }
+                    } catch (IOException e) {
+                        Log.e("StashMedia", "Failed to finish shared download: " + e.getMessage());
+                    } finally {
+                        closeQuietly(media);
+                        if (spool != null && !flight.isSpoolComplete()) {
+                            // Cut short or abandoned, so the joiners fetch on their own instead
+                            spool.delete();
+                            spool = null;
+                        }
+                        land(url, flight, joiners, spool, media, null);
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Detaches the joiners with the given tag from their flight and fails them. The flight itself
+     * carries on for everyone else.
+     *
+     * @return whether any joiner was found
+     */
+    boolean cancel(String tag) {
+        List<Flight.Joiner> tagged;
+        synchronized (flights) {
+            tagged = joiners.remove(tag);
+        }
+        if (tagged == null) {
+            return false;
+        }
+
+        boolean canceled = false;
+        for (Flight.Joiner joiner : tagged) {
+            if (joiner.settle()) {
+                joiner.callback.onFailure(new IOException("Canceled"));
+                canceled = true;
+            }
+        }
+        return canceled;
+    }
+
+    /**
+     * The first caller being canceled says nothing about the URL, so joiners then fetch on their
+     * own instead of failing with it.
+     */
+    private static IOException joinerError(Call call, IOException e) {
+        return call.isCanceled() ? null : e;
+    }
+
+    /**
+     * Takes a joiner off the flight, unless it was canceled in the meantime.
+     */
+    private boolean settle(Flight.Joiner joiner) {
+        if (joiner.tag != null) {
+            synchronized (flights) {
+                List<Flight.Joiner> tagged = joiners.get(joiner.tag);
+                if (tagged != null) {
+                    tagged.remove(joiner);
+                    if (tagged.isEmpty()) {
+                        joiners.remove(joiner.tag);
+                    }
+                }
+            }
+        }
+        return joiner.settle();
+    }
+
+    /**
+     * Completes a flight: joiners are served from the spool, or failed with the same error as the
+     * first caller. Anyone left without a result fetches again on their own.
+     *
+     * @param original the first caller's (closed) response, for its headers
+     */
+    private void land(
+        String url,
+        Flight flight,
+        List<Flight.Joiner> joiners,
+        File spool,
+        MediaResponse original,
+        IOException error
+    ) {
+        synchronized (flights) {
+            flights.remove(url);
+        }
+
+        List<Flight.Joiner> served = new ArrayList<>();
+        for (Flight.Joiner joiner : joiners) {
+            if (!settle(joiner)) {
+                continue;
+            }
+            if (error != null) {
+                joiner.callback.onFailure(error);
+            } else if (spool == null) {
+                // Under its own tag, so that it can still be canceled
+                fetch(url, joiner.tag, joiner.callback);
+            } else {
+                served.add(joiner);
+            }
+        }
+
+        for (Flight.Joiner joiner : flight.lateJoiners()) {
+            if (settle(joiner)) {
+                fetch(url, joiner.tag, joiner.callback);
+            }
+        }
+
+        if (served.isEmpty()) {
+            if (spool != null) {
+                spool.delete();
+            }
+            return;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(served.size());
+        for (Flight.Joiner joiner : served) {
+            executor.execute(() -> {
+                try {
+                    serveFromSpool(spool, original, joiner.callback);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        spool.delete();
+                    }
+                }
+            });
+        }
+    }
+
+    private void serveFromSpool(File spool, MediaResponse original, StashMedia.MediaCallback callback) {
+        MediaResponse media;
+        try {
+            media = new MediaResponse(
+                Okio.buffer(Okio.source(spool)),
+                original.contentType(),
+                original.etag(),
+                original.lastModified(),
+                spool.length(),
+                original.isFromCache(),
+                null
+            );
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+
+        try {
+            callback.onResponse(media);
+        } finally {
+            closeQuietly(media);
+        }
+    }
+
+    private Request buildRequest(String url, MediaCache.Entry cached, String tag) {
+        Request.Builder builder = new Request.Builder().url(url);
+
+        if (tag != null) {
+            builder.tag(String.class, tag);
+        }
+
+        if (cached != null) {
+            if (cached.etag != null) {
+                builder.header("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                builder.header("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        return builder.build();
+    }
+
+    private MediaResponse readThrough(String url, MediaCache.Entry cached, Response response) throws IOException {
+        if (response.code() == 304 && cached != null) {
+            response.close();
+
+            File file = cache.file(cached);
+            Source source;
+            try {
+                source = Okio.source(file);
+            } catch (FileNotFoundException e) {
+                // Evicted between lookup and revalidation
+                cache.remove(url);
+                Request retry = buildRequest(url, null, response.request().tag(String.class));
+                return readThrough(url, null, client.newCall(retry).execute());
+            }
+
+            cache.recordHit(cached);
+            Log.d("StashMedia", "Serving " + url + " from cache");
+            BufferedSource buffered = Okio.buffer(source);
+            String contentType;
+            try {
+                // Entries stored before sniffing was added may carry the header's type
+                contentType = MediaTypes.resolve(buffered, cached.contentType);
+            } catch (IOException e) {
+                buffered.close();
+                throw e;
+            }
+            return new MediaResponse(
+                buffered,
+                contentType,
+                cached.etag,
+                cached.lastModified,
+                file.length(),
+                true,
+                null
+            );
+        }
+
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("HTTP " + response.code() + " " + response.message());
+        }
+
+        cache.recordMiss();
+
+        ResponseBody body = response.body();
+        BufferedSource source = body.source();
+        String contentType;
+        try {
+            // Peeked before the tee below, which then passes the same bytes on to the cache
+            contentType = MediaTypes.resolve(source, response.header("Content-Type"));
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+
+        MediaCache.Editor editor = cache.edit(
+            url,
+            response.header("ETag"),
+            response.header("Last-Modified"),
+            contentType,
+            response.header("Cache-Control"),
+            body.contentLength()
+        );
+        if (editor != null) {
+            source = Okio.buffer(editor.tee(source));
+        }
+
+        return new MediaResponse(
+            source,
+            contentType,
+            response.header("ETag"),
+            response.header("Last-Modified"),
+            body.contentLength(),
+            false,
+            response
+        );
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,136 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.MediaStore;
+import java.io.File;
+
+/**
+ * Remembers what has been saved to the gallery, so that saving the same media again can return the
+ * existing entry instead of inserting a duplicate.
+ */
+class MediaIndex extends SQLiteOpenHelper {
+
+    private static final int VERSION = 1;
+    private static final String TABLE = "saved_media";
+
+    static final class Record {
+
+        final String url;
+        final String etag;
+        final String lastModified;
+        final String sha256;
+        final Uri uri;
+
+        Record(String url, String etag, String lastModified, String sha256, Uri uri) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+            this.uri = uri;
+        }
+    }
+
+    MediaIndex(Context context) {
+        super(context, databasePath(context), null, VERSION);
+    }
+
+    private static String databasePath(Context context) {
+        File directory = new File(context.getFilesDir(), "stash-media");
+        directory.mkdirs();
+        return new File(directory, "index.db").getPath();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(
+            "CREATE TABLE " +
+            TABLE +
+            " (" +
+            "url TEXT PRIMARY KEY, " +
+            "etag TEXT, " +
+            "last_modified TEXT, " +
+            "sha256 TEXT NOT NULL, " +
+            "media_uri TEXT NOT NULL, " +
+            "created_at INTEGER NOT NULL" +
+            ")"
+        );
+        db.execSQL("CREATE INDEX saved_media_sha256 ON " + TABLE + " (sha256)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+
+    Record findByUrl(String url) {
+        return findOne("url = ?", url);
+    }
+
+    Record findByHash(String sha256) {
+        return findOne("sha256 = ?", sha256);
+    }
+
+    void put(String url, String etag, String lastModified, String sha256, Uri uri) {
+        ContentValues values = new ContentValues();
+        values.put("url", url);
+        values.put("etag", etag);
+        values.put("last_modified", lastModified);
+        values.put("sha256", sha256);
+        values.put("media_uri", uri.toString());
+        values.put("created_at", System.currentTimeMillis());
+
+        getWritableDatabase().insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    void removeUri(Uri uri) {
+        getWritableDatabase().delete(TABLE, "media_uri = ?", new String[] { uri.toString() });
+    }
+
+    /**
+     * Whether the gallery entry still exists; the user may have deleted it since it was saved.
+     * Stale records are dropped.
+     */
+    boolean isPresent(ContentResolver resolver, Record record) {
+        try (Cursor cursor = resolver.query(record.uri, new String[] { MediaStore.MediaColumns._ID }, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return true;
+            }
+        } catch (SecurityException | IllegalArgumentException e) {
+            // Fall through, treat as gone
+        }
+
+        removeUri(record.uri);
+        return false;
+    }
+
+    private Record findOne(String selection, String argument) {
+        try (
+            Cursor cursor = getReadableDatabase().query(
+                TABLE,
+                new String[] { "url", "etag", "last_modified", "sha256", "media_uri" },
+                selection,
+                new String[] { argument },
+                null,
+                null,
+                "created_at DESC",
+                "1"
+            )
+        ) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            return new Record(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getString(3),
+                Uri.parse(cursor.getString(4))
+            );
+        }
+    }
+}
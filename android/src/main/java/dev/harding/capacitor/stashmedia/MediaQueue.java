@@ -0,0 +1,191 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.Context;
+import androidx.lifecycle.Observer;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import com.getcapacitor.JSObject;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves that outlive the process, scheduled through WorkManager so they are persisted to disk,
+ * honor network and charging constraints, and are picked up again after process death.
+ *
+ * Interactive jobs are scheduled independently and start as soon as their constraints allow. Bulk
+ * jobs are appended to a single chain, so they run one at a time and never hold up interactive
+ * ones.
+ *
+ * WorkInfo does not expose a job's input, so what {@link #describe} reports is also kept in tags.
+ */
+class MediaQueue {
+
+    static final String TAG = "stash-media-queue";
+    static final String BULK_CHAIN = "stash-media-bulk";
+
+    static final String PRIORITY_INTERACTIVE = "interactive";
+    static final String PRIORITY_BULK = "bulk";
+
+    static final String KEY_URL = "url";
+    static final String KEY_KIND = "kind";
+    static final String KEY_DEDUPE = "dedupe";
+    static final String KEY_SHA256 = "sha256";
+    static final String KEY_URI = "uri";
+    static final String KEY_EXISTING = "existing";
+    static final String KEY_ERROR = "error";
+    static final String KEY_BYTES = "bytes";
+    static final String KEY_TOTAL_BYTES = "totalBytes";
+
+    private static final String TAG_URL = "url:";
+    private static final String TAG_KIND = "kind:";
+    private static final String TAG_PRIORITY = "priority:";
+
+    static final class Job {
+
+        final String url;
+        final String kind;
+        final String priority;
+        final boolean requiresUnmetered;
+        final boolean requiresCharging;
+        final boolean dedupe;
+        final String sha256;
+
+        Job(
+            String url,
+            String kind,
+            String priority,
+            boolean requiresUnmetered,
+            boolean requiresCharging,
+            boolean dedupe,
+            String sha256
+        ) {
+            this.url = url;
+            this.kind = kind;
+            this.priority = priority;
+            this.requiresUnmetered = requiresUnmetered;
+            this.requiresCharging = requiresCharging;
+            this.dedupe = dedupe;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final WorkManager workManager;
+
+    MediaQueue(Context context) {
+        this.workManager = WorkManager.getInstance(context);
+    }
+
+    /**
+     * @return the job id
+     */
+    String enqueue(Job job) {
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(job.requiresUnmetered ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+            .setRequiresCharging(job.requiresCharging)
+            .build();
+
+        Data input = new Data.Builder()
+            .putString(KEY_URL, job.url)
+            .putString(KEY_KIND, job.kind)
+            .putBoolean(KEY_DEDUPE, job.dedupe)
+            .putString(KEY_SHA256, job.sha256)
+            .build();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(MediaSaveWorker.class)
+            .setInputData(input)
+            .setConstraints(constraints)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+            .addTag(TAG)
+            .addTag(TAG_URL + job.url)
+            .addTag(TAG_KIND + job.kind)
+            .addTag(TAG_PRIORITY + job.priority)
+            .build();
+
+        if (PRIORITY_BULK.equals(job.priority)) {
+            // Replaces the chain only once everything in it has finished
+            workManager.enqueueUniqueWork(BULK_CHAIN, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+        } else {
+            workManager.enqueue(request);
+        }
+        return request.getId().toString();
+    }
+
+    /**
+     * Every job WorkManager still knows about; finished jobs are pruned after about a day. Blocks.
+     */
+    List<WorkInfo> jobs() throws ExecutionException, InterruptedException {
+        return workManager.getWorkInfosByTag(TAG).get();
+    }
+
+    /**
+     * Must be called on the main thread, as must {@link #removeObserver}.
+     */
+    void observe(Observer<List<WorkInfo>> observer) {
+        workManager.getWorkInfosByTagLiveData(TAG).observeForever(observer);
+    }
+
+    void removeObserver(Observer<List<WorkInfo>> observer) {
+        workManager.getWorkInfosByTagLiveData(TAG).removeObserver(observer);
+    }
+
+    static JSObject describe(WorkInfo info) {
+        JSObject job = new JSObject();
+        job.put("id", info.getId().toString());
+        for (String tag : info.getTags()) {
+            if (tag.startsWith(TAG_URL)) {
+                job.put("url", tag.substring(TAG_URL.length()));
+            } else if (tag.startsWith(TAG_KIND)) {
+                job.put("kind", tag.substring(TAG_KIND.length()));
+            } else if (tag.startsWith(TAG_PRIORITY)) {
+                job.put("priority", tag.substring(TAG_PRIORITY.length()));
+            }
+        }
+        job.put("attempts", info.getRunAttemptCount());
+
+        Data output = info.getOutputData();
+        String error = output.getString(KEY_ERROR);
+        switch (info.getState()) {
+            case ENQUEUED:
+            case BLOCKED:
+                job.put("state", "queued");
+                break;
+            case RUNNING:
+                job.put("state", "running");
+                Data progress = info.getProgress();
+                long totalBytes = progress.getLong(KEY_TOTAL_BYTES, 0);
+                if (totalBytes != 0) {
+                    job.put("bytes", progress.getLong(KEY_BYTES, 0));
+                    job.put("totalBytes", totalBytes);
+                }
+                break;
+            case SUCCEEDED:
+                // Jobs that ran out of attempts still succeed, so a failure doesn't cancel the rest
+                // of the bulk chain
+                job.put("state", error == null ? "succeeded" : "failed");
+                break;
+            case FAILED:
+                job.put("state", "failed");
+                break;
+            case CANCELLED:
+                job.put("state", "canceled");
+                break;
+        }
+
+        String uri = output.getString(KEY_URI);
+        if (uri != null) {
+            job.put("uri", uri);
+            job.put("existing", output.getBoolean(KEY_EXISTING, false));
+        }
+        if (error != null) {
+            job.put("error", error);
+        }
+        return job;
+    }
+}
@@ -0,0 +1,79 @@
+package dev.harding.capacitor.stashmedia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import okio.BufferedSource;
+
+/**
+ * The body of a media fetch, served either from the network or from {@link MediaCache}.
+ * Must be closed once consumed.
+ */
+class MediaResponse implements Closeable {
+
+    private final BufferedSource source;
+    private final String contentType;
+    private final String etag;
+    private final String lastModified;
+    private final long contentLength;
+    private final boolean fromCache;
+    private final Closeable resource;
+
+    MediaResponse(
+        BufferedSource source,
+        String contentType,
+        String etag,
+        String lastModified,
+        long contentLength,
+        boolean fromCache,
+        Closeable resource
+    ) {
+        this.source = source;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+        this.fromCache = fromCache;
+        this.resource = resource;
+    }
+
+    BufferedSource source() {
+        return source;
+    }
+
+    /**
+     * @return the type sniffed from the body, else the declared one, or null; see {@link MediaTypes}
+     */
+    String contentType() {
+        return contentType;
+    }
+
+    String etag() {
+        return etag;
+    }
+
+    String lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the body length in bytes, or -1 if unknown
+     */
+    long contentLength() {
+        return contentLength;
+    }
+
+    boolean isFromCache() {
+        return fromCache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            if (resource != null) {
+                resource.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link MediaQueue} job through the same {@link StashMedia} instance the plugin uses, so
+ * queued saves share its cache, connection pool and in-flight video downloads.
+ *
+ * Must be public for WorkManager to instantiate it.
+ */
+public class MediaSaveWorker extends Worker {
+
+    static final int MAX_ATTEMPTS = 3;
+    // WorkManager stops a worker after ten minutes; give up a little before so the retry is ours
+    private static final long TIMEOUT_MINUTES = 9;
+
+    private volatile StashMedia stashMedia;
+
+    public MediaSaveWorker(Context context, WorkerParameters params) {
+        super(context, params);
+    }
+
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        Data input = getInputData();
+        String url = input.getString(MediaQueue.KEY_URL);
+        boolean dedupe = input.getBoolean(MediaQueue.KEY_DEDUPE, false);
+        String sha256 = input.getString(MediaQueue.KEY_SHA256);
+        // Doubles as the cancel tag of the download, see onStopped
+        String id = getId().toString();
+
+        stashMedia = StashMediaPlugin.stashMedia(context);
+
+        CountDownLatch done = new CountDownLatch(1);
+        Uri[] saved = new Uri[1];
+        boolean[] existing = new boolean[1];
+        String[] error = new String[1];
+        boolean[] busy = new boolean[1];
+
+        StashMedia.SaveCallback callback = new StashMedia.SaveCallback() {
+            @Override
+            public void onSaved(Uri uri, boolean wasExisting) {
+                saved[0] = uri;
+                existing[0] = wasExisting;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String errorMessage, String code) {
+                error[0] = errorMessage;
+                busy[0] = StashMediaException.BUSY.equals(code);
+                done.countDown();
+            }
+        };
+
+        if (MediaBatch.KIND_VIDEO.equals(input.getString(MediaQueue.KEY_KIND))) {
+            stashMedia.saveVideo(
+                context,
+                url,
+                id,
+                dedupe,
+                sha256,
+                (bytes, totalBytes, bytesPerSecond) ->
+                    setProgressAsync(
+                        new Data.Builder().putLong(MediaQueue.KEY_BYTES, bytes).putLong(MediaQueue.KEY_TOTAL_BYTES, totalBytes).build()
+                    ),
+                callback
+            );
+        } else {
+            stashMedia.savePhoto(context, url, id, dedupe, null, sha256, callback);
+        }
+
+        try {
+            if (!done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                Log.d("StashMedia", "Queued save of " + url + " timed out, retrying");
+                stashMedia.cancel(id);
+                return Result.retry();
+            }
+        } catch (InterruptedException e) {
+            stashMedia.cancel(id);
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+
+        if (isStopped()) {
+            // WorkManager reschedules stopped work itself; a video resumes from its temp file
+            return Result.retry();
+        }
+
+        if (error[0] != null) {
+            // Turned away by the resource governor before anything was attempted, always try again
+            if (busy[0] || getRunAttemptCount() + 1 < MAX_ATTEMPTS) {
+                Log.d("StashMedia", "Queued save of " + url + " failed, retrying: " + error[0]);
+                return Result.retry();
+            }
+            Log.e("StashMedia", "Queued save of " + url + " failed: " + error[0]);
+            return Result.success(new Data.Builder().putString(MediaQueue.KEY_ERROR, error[0]).build());
+        }
+
+        return Result.success(
+            new Data.Builder().putString(MediaQueue.KEY_URI, saved[0].toString()).putBoolean(MediaQueue.KEY_EXISTING, existing[0]).build()
+        );
+    }
+
+    @Override
+    public void onStopped() {
+        StashMedia current = stashMedia;
+        if (current != null) {
+            current.cancel(getId().toString());
+        }
+    }
+}
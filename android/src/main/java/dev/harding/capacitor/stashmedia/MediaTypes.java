@@ -0,0 +1,220 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.webkit.MimeTypeMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Works out what a body actually is from its first bytes, since CDNs routinely send
+ * {@code application/octet-stream}, no Content-Type at all, or the type of a different format.
+ */
+final class MediaTypes {
+
+    /**
+     * Enough for every signature below, including an ftyp box with a handful of compatible brands.
+     * Smaller than one Okio segment, so peeking never buffers more than the first read would.
+     */
+    static final int SNIFF_LENGTH = 64;
+
+    private static final ByteString JPEG = ByteString.decodeHex("ffd8ff");
+    private static final ByteString PNG = ByteString.decodeHex("89504e470d0a1a0a");
+    private static final ByteString GIF87A = ByteString.encodeUtf8("GIF87a");
+    private static final ByteString GIF89A = ByteString.encodeUtf8("GIF89a");
+    private static final ByteString RIFF = ByteString.encodeUtf8("RIFF");
+    private static final ByteString WEBP = ByteString.encodeUtf8("WEBP");
+    private static final ByteString FTYP = ByteString.encodeUtf8("ftyp");
+    private static final ByteString EBML = ByteString.decodeHex("1a45dfa3");
+    private static final ByteString WEBM = ByteString.encodeUtf8("webm");
+    private static final ByteString MATROSKA = ByteString.encodeUtf8("matroska");
+
+    private MediaTypes() {}
+
+    /**
+     * The sniffed type if the body is recognized, otherwise the declared one unless it is generic.
+     * Does not consume anything from {@code source}.
+     *
+     * @param declared the Content-Type header, or null
+     * @return null if neither says what the body is
+     */
+    static String resolve(BufferedSource source, String declared) throws IOException {
+        String sniffed = sniff(source);
+        return sniffed != null ? sniffed : normalize(declared);
+    }
+
+    static String sniff(BufferedSource source) throws IOException {
+        BufferedSource peek = source.peek();
+        peek.request(SNIFF_LENGTH);
+        return sniff(peek.readByteString(Math.min(SNIFF_LENGTH, peek.getBuffer().size())));
+    }
+
+    static String sniff(ByteString header) {
+        if (header.startsWith(JPEG)) {
+            return "image/jpeg";
+        }
+        if (header.startsWith(PNG)) {
+            return "image/png";
+        }
+        if (header.startsWith(GIF87A) || header.startsWith(GIF89A)) {
+            return "image/gif";
+        }
+        if (header.startsWith(RIFF) && header.rangeEquals(8, WEBP, 0, WEBP.size())) {
+            return "image/webp";
+        }
+        if (header.rangeEquals(4, FTYP, 0, FTYP.size())) {
+            return isoBaseMedia(header);
+        }
+        if (header.startsWith(EBML)) {
+            // The DocType follows a few bytes into the EBML header
+            if (header.indexOf(WEBM) != -1) {
+                return "video/webm";
+            }
+            if (header.indexOf(MATROSKA) != -1) {
+                return "video/x-matroska";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * HEIF, AVIF, MP4 and QuickTime all start with an ftyp box: a major brand at offset 8 followed
+     * by compatible brands from offset 16. Image brands win over video ones, since an image file
+     * may list {@code mp41} as compatible but not the other way around.
+     */
+    private static String isoBaseMedia(ByteString header) {
+        long boxSize = 0;
+        for (int i = 0; i < 4; i++) {
+            boxSize = (boxSize << 8) | (header.getByte(i) & 0xff);
+        }
+        int end = (int) Math.min(header.size(), Math.max(12, boxSize));
+
+        String video = null;
+        boolean heif = false;
+        // Skips the minor version between the major brand and the compatible ones
+        for (int offset = 8; offset + 4 <= end; offset = offset == 8 ? 16 : offset + 4) {
+            String brand = header.substring(offset, offset + 4).string(StandardCharsets.ISO_8859_1);
+            switch (brand) {
+                case "avif":
+                case "avis":
+                    return "image/avif";
+                case "heic":
+                case "heix":
+                case "heim":
+                case "heis":
+                case "hevc":
+                case "hevx":
+                    return "image/heic";
+                case "mif1":
+                case "msf1":
+                    heif = true;
+                    break;
+                case "qt  ":
+                    if (video == null) {
+                        video = "video/quicktime";
+                    }
+                    break;
+                default:
+                    if (video == null && (brand.startsWith("3gp") || brand.startsWith("3g2"))) {
+                        video = "video/3gpp";
+                    } else if (video == null && (brand.startsWith("iso") || brand.startsWith("mp4") || isMp4Brand(brand))) {
+                        video = "video/mp4";
+                    }
+            }
+        }
+
+        if (heif) {
+            return "image/heif";
+        }
+        return video;
+    }
+
+    private static boolean isMp4Brand(String brand) {
+        switch (brand) {
+            case "avc1":
+            case "dash":
+            case "M4V ":
+            case "M4VH":
+            case "M4VP":
+            case "mmp4":
+            case "MSNV":
+            case "f4v ":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Drops parameters and generic binary types, which say nothing about the format.
+     */
+    static String normalize(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon != -1 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase(Locale.US);
+        switch (type) {
+            case "":
+            case "application/octet-stream":
+            case "binary/octet-stream":
+            case "application/binary":
+                return null;
+            default:
+                return type;
+        }
+    }
+
+    /**
+     * @return the gallery collection for the type, or null if it is neither an image nor a video
+     */
+    static Uri collection(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+        if (mimeType.startsWith("image/")) {
+            return MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+        }
+        if (mimeType.startsWith("video/")) {
+            return MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+        }
+        return null;
+    }
+
+    static boolean isVideo(String mimeType) {
+        return mimeType != null && mimeType.startsWith("video/");
+    }
+
+    /**
+     * @return a file extension without the dot, or null if there is none for the type
+     */
+    static String extension(String mimeType) {
+        if (mimeType == null) {
+            return null;
+        }
+        String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+        if (extension != null) {
+            return extension;
+        }
+        // Missing from MimeTypeMap on older releases
+        switch (mimeType) {
+            case "image/heic":
+                return "heic";
+            case "image/heif":
+                return "heif";
+            case "image/avif":
+                return "avif";
+            case "image/webp":
+                return "webp";
+            case "video/webm":
+                return "webm";
+            case "video/x-matroska":
+                return "mkv";
+            default:
+                return null;
+        }
+    }
+}
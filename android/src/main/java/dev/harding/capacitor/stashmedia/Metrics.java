@@ -0,0 +1,252 @@
+package dev.harding.capacitor.stashmedia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograms of what the hot paths spend their time and bytes on, and counters of how often things
+ * happen. Recording never takes a lock, so it is cheap enough to leave on in production.
+ *
+ * Durations are recorded in microseconds and reported in milliseconds.
+ */
+class Metrics {
+
+    static final String HTTP_DNS = "http.dns";
+    static final String HTTP_CONNECT = "http.connect";
+    static final String HTTP_TLS = "http.tls";
+    static final String HTTP_TTFB = "http.ttfb";
+    static final String HTTP_DOWNLOAD = "http.download";
+    static final String HTTP_CALL = "http.call";
+    static final String HTTP_BYTES = "http.bytes";
+    static final String HTTP_THROUGHPUT = "http.throughput";
+    /**
+     * A counter, see {@link #increment}
+     */
+    static final String HTTP_FAILURES = "http.failures";
+    static final String MEDIASTORE_INSERT = "mediastore.insert";
+    static final String MEDIASTORE_WRITE = "mediastore.write";
+    static final String IMAGE_DECODE = "image.decode";
+    static final String IMAGE_ENCODE = "image.encode";
+    static final String GOVERNOR_WAIT = "governor.wait";
+
+    interface Observer {
+        /**
+         * Called for every recorded value, on the recording thread.
+         *
+         * @param value in the unit {@link Snapshot} reports, i.e. milliseconds for durations
+         */
+        void onSample(String name, double value);
+    }
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private volatile long since = System.currentTimeMillis();
+    private volatile Observer observer;
+
+    void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * @return System.nanoTime() to later pass to {@link #recordSince}
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    void recordSince(String name, long startNanos) {
+        recordDuration(name, System.nanoTime() - startNanos);
+    }
+
+    void recordDuration(String name, long nanos) {
+        histogram(name, true).record(nanos / 1000);
+        notify(name, nanos / 1_000_000.0);
+    }
+
+    void record(String name, long value) {
+        histogram(name, false).record(value);
+        notify(name, value);
+    }
+
+    /**
+     * Counts an event that has no size or duration worth a histogram.
+     */
+    void increment(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, key -> new AtomicLong());
+        }
+        counter.incrementAndGet();
+        notify(name, 1);
+    }
+
+    void reset() {
+        histograms.clear();
+        counters.clear();
+        since = System.currentTimeMillis();
+    }
+
+    long since() {
+        return since;
+    }
+
+    List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            snapshots.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return the counters incremented at least once, by name
+     */
+    Map<String, Long> counters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    private Histogram histogram(String name, boolean duration) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, key -> new Histogram(duration));
+        }
+        return histogram;
+    }
+
+    private void notify(String name, double value) {
+        Observer current = observer;
+        if (current != null) {
+            current.onSample(name, value);
+        }
+    }
+
+    static final class Snapshot {
+
+        final String name;
+        final long count;
+        final double sum;
+        final double min;
+        final double max;
+        final double p50;
+        final double p90;
+        final double p99;
+
+        Snapshot(String name, long count, double sum, double min, double max, double p50, double p90, double p99) {
+            this.name = name;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        double mean() {
+            return count > 0 ? sum / count : 0;
+        }
+    }
+
+    /**
+     * Log-linear histogram: each power of two is split into {@link #SUB_BUCKETS} linear buckets, so
+     * percentiles are accurate to within about 1/{@link #SUB_BUCKETS} of the value.
+     */
+    static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final boolean duration;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram(boolean duration) {
+            this.duration = duration;
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+
+            counts.incrementAndGet(bucket(value));
+            sum.addAndGet(value);
+            min.accumulateAndGet(value, Math::min);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            // Shift so that the top SUB_BUCKET_BITS + 1 bits remain, i.e. a value in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+        }
+
+        /**
+         * The largest value that falls into the given bucket.
+         */
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent;
+            return lower + (1L << exponent) - 1;
+        }
+
+        Snapshot snapshot(String name) {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                total += copy[i];
+            }
+
+            if (total == 0) {
+                return new Snapshot(name, 0, 0, 0, 0, 0, 0, 0);
+            }
+
+            long highest = max.get();
+            return new Snapshot(
+                name,
+                total,
+                scale(sum.get()),
+                scale(min.get()),
+                scale(highest),
+                scale(Math.min(percentile(copy, total, 0.50), highest)),
+                scale(Math.min(percentile(copy, total, 0.90), highest)),
+                scale(Math.min(percentile(copy, total, 0.99), highest))
+            );
+        }
+
+        private static long percentile(long[] counts, long total, double percentile) {
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        private double scale(long value) {
+            return duration ? value / 1000.0 : value;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A MediaStore row being written. On Android 10+ it is inserted as pending, so neither the gallery
+ * nor the media scanner sees it until {@link #publish()}. Closing a row that was never published
+ * deletes it, so a failed write leaves nothing behind.
+ */
+final class PendingMedia implements Closeable {
+
+    final Uri uri;
+
+    private final ContentResolver resolver;
+    private boolean published;
+
+    private PendingMedia(ContentResolver resolver, Uri uri) {
+        this.resolver = resolver;
+        this.uri = uri;
+    }
+
+    static PendingMedia insert(ContentResolver resolver, Uri collection, ContentValues values, Metrics metrics) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        }
+
+        long insertStart = Metrics.start();
+        Uri uri = resolver.insert(collection, values);
+        metrics.recordSince(Metrics.MEDIASTORE_INSERT, insertStart);
+
+        if (uri == null) {
+            throw new IOException("Failed to create media URI");
+        }
+        return new PendingMedia(resolver, uri);
+    }
+
+    /**
+     * Makes the row visible. Only call once its content has been written and verified.
+     */
+    void publish() throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            ContentValues publish = new ContentValues();
+            publish.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            if (resolver.update(uri, publish, null, null) != 1) {
+                throw new IOException("Failed to publish " + uri);
+            }
+        }
+        published = true;
+    }
+
+    @Override
+    public void close() {
+        if (published) {
+            return;
+        }
+
+        try {
+            resolver.delete(uri, null, null);
+        } catch (RuntimeException e) {
+            // The provider throws rather than returning 0 for some failures; nothing more can be done
+            Log.e("StashMedia", "Failed to delete unpublished " + uri + ": " + e.getMessage());
+        }
+    }
+}
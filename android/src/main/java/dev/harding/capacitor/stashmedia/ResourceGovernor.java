@@ -0,0 +1,162 @@
+package dev.harding.capacitor.stashmedia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps what concurrent operations may hold at once: bytes of memory (decoded bitmaps and transfer
+ * buffers) and the number of operations writing to disk. Operations over the limit wait their turn
+ * in FIFO order, or are turned away with {@link StashMediaException#BUSY} when the governor is
+ * configured to reject.
+ *
+ * Leases are taken by whole operations and never while holding another lease, and the writer slot
+ * is always taken before memory, so waiting cannot deadlock.
+ */
+class ResourceGovernor {
+
+    static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    static final int DEFAULT_MAX_WRITERS = 4;
+
+    /**
+     * What an operation that streams without decoding holds in memory: at most the largest chunk in
+     * flight plus the segments buffered on either side of it.
+     */
+    static final long BUFFER_COST = 2 * Transfer.MAX_CHUNK_SIZE;
+
+    static final class BusyException extends StashMediaException {
+
+        BusyException(String message) {
+            super(StashMediaException.BUSY, message);
+        }
+    }
+
+    static final class Usage {
+
+        final long memoryBytes;
+        final long memoryBudget;
+        final int writers;
+        final int maxWriters;
+        final int waiting;
+        final long rejected;
+
+        Usage(long memoryBytes, long memoryBudget, int writers, int maxWriters, int waiting, long rejected) {
+            this.memoryBytes = memoryBytes;
+            this.memoryBudget = memoryBudget;
+            this.writers = writers;
+            this.maxWriters = maxWriters;
+            this.waiting = waiting;
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * Returns its share of the budget when closed. Closing twice is harmless.
+     */
+    final class Lease implements Closeable {
+
+        private final int kilobytes;
+        private final boolean writer;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(int kilobytes, boolean writer) {
+            this.kilobytes = kilobytes;
+            this.writer = writer;
+        }
+
+        @Override
+        public void close() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            memory.release(kilobytes);
+            if (writer) {
+                writers.release();
+            }
+        }
+    }
+
+    // Permits are KiB so that budgets above 2 GiB still fit in an int
+    private final int memoryKilobytes;
+    private final int maxWriters;
+    private final boolean rejectWhenBusy;
+    private final Semaphore memory;
+    private final Semaphore writers;
+    private final Metrics metrics;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param rejectWhenBusy fail with {@link BusyException} instead of waiting
+     */
+    ResourceGovernor(long memoryBudget, int maxWriters, boolean rejectWhenBusy, Metrics metrics) {
+        this.memoryKilobytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / 1024));
+        this.maxWriters = Math.max(1, maxWriters);
+        this.rejectWhenBusy = rejectWhenBusy;
+        this.memory = new Semaphore(memoryKilobytes, true);
+        this.writers = new Semaphore(this.maxWriters, true);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Blocks until the operation fits. Requests larger than the whole budget are trimmed to it, so
+     * they run once everything else has finished instead of never.
+     *
+     * @param bytes memory the operation will hold at its peak
+     * @param writer whether the operation writes to disk
+     */
+    Lease acquire(long bytes, boolean writer) throws IOException {
+        int kilobytes = (int) Math.min(memoryKilobytes, Math.max(1, (bytes + 1023) / 1024));
+        long start = Metrics.start();
+
+        boolean tookWriter = false;
+        boolean tookMemory = false;
+        try {
+            if (writer && !(tookWriter = take(writers, 1))) {
+                throw busy();
+            }
+            if (!(tookMemory = take(memory, kilobytes))) {
+                throw busy();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for resources");
+        } finally {
+            // Turned away or interrupted while waiting for the memory, so the writer slot goes back
+            if (tookWriter && !tookMemory) {
+                writers.release();
+            }
+        }
+
+        metrics.recordSince(Metrics.GOVERNOR_WAIT, start);
+        return new Lease(kilobytes, writer);
+    }
+
+    private boolean take(Semaphore semaphore, int permits) throws InterruptedException {
+        if (rejectWhenBusy) {
+            // Unlike tryAcquire(permits), a zero timeout respects the fairness of the queue
+            return semaphore.tryAcquire(permits, 0, TimeUnit.SECONDS);
+        }
+        semaphore.acquire(permits);
+        return true;
+    }
+
+    private BusyException busy() {
+        rejected.incrementAndGet();
+        return new BusyException("Too many media operations in progress");
+    }
+
+    Usage usage() {
+        return new Usage(
+            (long) (memoryKilobytes - memory.availablePermits()) * 1024,
+            (long) memoryKilobytes * 1024,
+            maxWriters - writers.availablePermits(),
+            maxWriters,
+            memory.getQueueLength() + writers.getQueueLength(),
+            rejected.get()
+        );
+    }
+}
@@ -0,0 +1,348 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a URL into a temp file that survives failed attempts. Each retry (and a later call for the
+ * same URL) resumes from the bytes already on disk with a {@code Range} request guarded by
+ * {@code If-Range}, so a changed resource restarts from zero instead of producing a spliced file.
+ */
+class ResumableDownload {
+
+    private static final String TAG = "StashMedia";
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+    // Long enough for a queued save to come back to its partial file, short enough that abandoned
+    // ones don't pile up
+    private static final long MAX_PARTIAL_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * A failure that retrying will not fix, such as a 404 or an unexpected content type.
+     */
+    static class PermanentFailure extends IOException {
+
+        PermanentFailure(String message) {
+            super(message);
+        }
+    }
+
+    static class InvalidContentType extends PermanentFailure {
+
+        InvalidContentType(String contentType) {
+            super("Invalid content type: " + contentType);
+        }
+    }
+
+    static final class Result {
+
+        final File file;
+        final String contentType;
+        final String etag;
+        final String lastModified;
+        final long length;
+
+        Result(File file, String contentType, String etag, String lastModified, long length) {
+            this.file = file;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private final OkHttpClient client;
+    private final String url;
+    private final String tag;
+    private final String mimePrefix;
+    private final StashMedia.ProgressListener listener;
+    private final TransferProfile profile;
+    private final TransferProfile.Observer tuningObserver;
+
+    private final File partFile;
+    private final File metaFile;
+    private final Properties meta = new Properties();
+
+    private volatile Call call;
+    private volatile boolean canceled;
+    private long sessionStart;
+    private long sessionStartBytes;
+    private long lastProgress;
+
+    /**
+     * @param directory where partial downloads are kept between attempts
+     * @param mimePrefix if set, responses whose type does not start with it are rejected after their
+     *     first bytes, see {@link MediaTypes}
+     * @param tuningObserver notified as chunk sizes adapt, may be null
+     */
+    ResumableDownload(
+        OkHttpClient client,
+        File directory,
+        String url,
+        String tag,
+        String mimePrefix,
+        StashMedia.ProgressListener listener,
+        TransferProfile profile,
+        TransferProfile.Observer tuningObserver
+    ) {
+        this.client = client;
+        this.url = url;
+        this.tag = tag;
+        this.mimePrefix = mimePrefix;
+        this.listener = listener;
+        this.profile = profile;
+        this.tuningObserver = tuningObserver;
+
+        directory.mkdirs();
+        String name = MediaCache.sha256(url);
+        this.partFile = new File(directory, name + ".part");
+        this.metaFile = new File(directory, name + ".meta");
+    }
+
+    /**
+     * Blocks until the whole body is on disk. The returned file belongs to the caller, who should
+     * {@link #discard()} it once it has been copied elsewhere.
+     */
+    Result run() throws IOException {
+        readMeta();
+
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Result result = attempt();
+                // Null if the partial file did not line up with the server's copy and was dropped
+                return result != null ? result : attempt();
+            } catch (PermanentFailure e) {
+                discard();
+                throw e;
+            } catch (IOException e) {
+                if (canceled || (call != null && call.isCanceled())) {
+                    // Keep the partial file, a later save of the same URL resumes from it
+                    throw new IOException("Canceled");
+                }
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+
+                Log.d(TAG, "Download interrupted at " + partFile.length() + " bytes, retrying in " + backoff + "ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoff *= 2;
+            }
+        }
+    }
+
+    /**
+     * Deletes partial downloads nobody has touched in a while, along with their state.
+     */
+    static void sweep(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - MAX_PARTIAL_AGE_MILLIS;
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(".part") || name.endsWith(".meta")) && file.lastModified() < cutoff) {
+                Log.d(TAG, "Deleting stale partial download " + name);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Stops the download, including any retry still to come. The partial file is kept.
+     */
+    void cancel() {
+        canceled = true;
+        Call current = call;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    boolean isCanceled() {
+        return canceled;
+    }
+
+    void discard() {
+        partFile.delete();
+        metaFile.delete();
+    }
+
+    private Result attempt() throws IOException {
+        String validator = meta.getProperty("etag", meta.getProperty("lastModified"));
+        long offset = validator != null && partFile.isFile() ? partFile.length() : 0;
+
+        Request.Builder builder = new Request.Builder().url(url);
+        if (tag != null) {
+            builder.tag(String.class, tag);
+        }
+        if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-");
+            builder.header("If-Range", validator);
+        }
+
+        call = client.newCall(builder.build());
+        if (canceled) {
+            // Canceled between attempts, or before the call above was visible to cancel()
+            call.cancel();
+        }
+        try (Response response = call.execute()) {
+            long total = Long.parseLong(meta.getProperty("total", "-1"));
+
+            if (response.code() == 416 && offset > 0 && offset == total) {
+                // Everything was already on disk
+                return result(offset);
+            }
+
+            if (!response.isSuccessful()) {
+                String message = "HTTP " + response.code() + " " + response.message();
+                if (response.code() >= 500 || response.code() == 408 || response.code() == 429) {
+                    throw new IOException(message);
+                }
+                throw new PermanentFailure(message);
+            }
+
+            ResponseBody body = response.body();
+            boolean append = response.code() == 206 && offset > 0;
+
+            if (append && !continuesFrom(response.header("Content-Range"), offset, total)) {
+                // Not the tail of the file on disk, so appending it would splice two files together
+                Log.d(TAG, "Unexpected Content-Range " + response.header("Content-Range") + ", starting over");
+                discard();
+                meta.clear();
+                return null;
+            }
+
+            if (!append) {
+                // Fresh download, either the first one or the resource changed since the last attempt
+                offset = 0;
+                // Sniffed from the start of the body, so a video sent as application/octet-stream is
+                // still accepted and a wrong header is caught before anything is written
+                String contentType = MediaTypes.resolve(body.source(), response.header("Content-Type"));
+                if (mimePrefix != null && (contentType == null || !contentType.startsWith(mimePrefix))) {
+                    throw new InvalidContentType(contentType);
+                }
+
+                meta.clear();
+                putIfNotNull("etag", response.header("ETag"));
+                putIfNotNull("lastModified", response.header("Last-Modified"));
+                putIfNotNull("contentType", contentType);
+                total = body.contentLength();
+                meta.setProperty("total", Long.toString(total));
+                writeMeta();
+            } else {
+                Log.d(TAG, "Resuming download at " + offset + " bytes");
+            }
+
+            // Throughput is measured per attempt, so bytes resumed from disk do not inflate it
+            sessionStart = System.currentTimeMillis();
+            sessionStartBytes = offset;
+            long start = offset;
+            long expected = total;
+            Transfer.ChunkSizer chunks = new Transfer.ChunkSizer(profile, body.contentLength(), response.request().url().host(), tuningObserver);
+            long bytes =
+                start +
+                Transfer.copy(body.source(), partFile, append, chunks, written -> reportProgress(start + written, expected, false)).bytes;
+
+            if (total != -1 && bytes != total) {
+                throw new IOException("Expected " + total + " bytes but received " + bytes);
+            }
+
+            reportProgress(bytes, total, true);
+            return result(bytes);
+        }
+    }
+
+    /**
+     * Whether a {@code Content-Range} such as {@code bytes 1000-1999/2000} starts at {@code offset}
+     * of a resource of {@code total} bytes.
+     *
+     * @param total -1 if the length was not known when the download started
+     */
+    static boolean continuesFrom(String contentRange, long offset, long total) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return false;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash == -1 || slash < dash) {
+            return false;
+        }
+
+        try {
+            long start = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+            if (start != offset) {
+                return false;
+            }
+            String length = contentRange.substring(slash + 1).trim();
+            return total == -1 || (!length.equals("*") && Long.parseLong(length) == total);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private Result result(long length) {
+        return new Result(partFile, meta.getProperty("contentType"), meta.getProperty("etag"), meta.getProperty("lastModified"), length);
+    }
+
+    private void reportProgress(long bytes, long total, boolean force) {
+        if (listener == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (!force && now - lastProgress < PROGRESS_INTERVAL_MILLIS) {
+            return;
+        }
+        lastProgress = now;
+
+        long elapsed = Math.max(1, now - sessionStart);
+        long bytesPerSecond = ((bytes - sessionStartBytes) * 1000) / elapsed;
+        listener.onProgress(bytes, total, bytesPerSecond);
+    }
+
+    private void putIfNotNull(String key, String value) {
+        if (value != null) {
+            meta.setProperty(key, value);
+        }
+    }
+
+    private void readMeta() {
+        if (!metaFile.isFile()) {
+            return;
+        }
+
+        try (InputStream inputStream = new FileInputStream(metaFile)) {
+            meta.load(inputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read download state, starting over: " + e.getMessage());
+            meta.clear();
+        }
+    }
+
+    private void writeMeta() throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(metaFile)) {
+            meta.store(outputStream, null);
+        }
+    }
+}
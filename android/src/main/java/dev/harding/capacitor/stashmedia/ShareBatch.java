@@ -0,0 +1,192 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.Context;
+import android.net.Uri;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stages several images for one share sheet. Downloads run in parallel, at most
+ * {@code concurrency} at a time.
+ *
+ * Best-effort batches wait for every item and report which ones made it. Fail-fast batches give up
+ * on the first failure: downloads still running are canceled and anything already staged is
+ * discarded.
+ */
+class ShareBatch {
+
+    static final class Item {
+
+        final int index;
+        final String url;
+        final String title;
+
+        Uri uri;
+        File stagedFile;
+        String error;
+
+        Item(int index, String url, String title) {
+            this.index = index;
+            this.url = url;
+            this.title = title;
+        }
+    }
+
+    interface ShareCallback {
+        /**
+         * Called once every item has either been staged or failed.
+         */
+        void onStaged(List<Item> items);
+
+        /**
+         * Called instead of {@link #onStaged} when a fail-fast batch gives up.
+         */
+        void onFailed(String errorMessage);
+    }
+
+    private final StashMedia stashMedia;
+    private final Context context;
+    private final List<Item> items;
+    private final int concurrency;
+    private final boolean failFast;
+    private final ImageTranscoder.Options transcode;
+    private final ShareCallback callback;
+
+    // Tags every download of the batch, so a fail-fast batch can cancel them together
+    private final String tag = "share-batch-" + UUID.randomUUID();
+
+    private final ArrayDeque<Item> pending = new ArrayDeque<>();
+    private int remaining;
+    private boolean failed;
+
+    ShareBatch(
+        StashMedia stashMedia,
+        Context context,
+        List<Item> items,
+        int concurrency,
+        boolean failFast,
+        ImageTranscoder.Options transcode,
+        ShareCallback callback
+    ) {
+        this.stashMedia = stashMedia;
+        this.context = context;
+        this.items = items;
+        this.concurrency = Math.max(1, concurrency);
+        this.failFast = failFast;
+        this.transcode = transcode;
+        this.callback = callback;
+    }
+
+    void start() {
+        for (Item item : items) {
+            if (item.url == null || item.title == null) {
+                if (failFast) {
+                    callback.onFailed("items[" + item.index + "]: URL or title is missing");
+                    return;
+                }
+                item.error = "URL or title is missing";
+            } else {
+                pending.add(item);
+            }
+        }
+
+        List<Item> ready = new ArrayList<>();
+        synchronized (this) {
+            remaining = pending.size();
+            while (ready.size() < concurrency && !pending.isEmpty()) {
+                ready.add(pending.poll());
+            }
+        }
+
+        if (ready.isEmpty()) {
+            callback.onStaged(items);
+            return;
+        }
+
+        for (Item item : ready) {
+            download(item);
+        }
+    }
+
+    private void download(Item item) {
+        stashMedia.downloadAndSaveImageForSharing(
+            context,
+            item.url,
+            item.title,
+            transcode,
+            tag,
+            new StashMedia.ImageDownloadListener() {
+                @Override
+                public void onImageDownloaded(Uri imageUri, File stagedFile) {
+                    boolean kept;
+                    synchronized (ShareBatch.this) {
+                        kept = !failed;
+                        if (kept) {
+                            item.uri = imageUri;
+                            item.stagedFile = stagedFile;
+                        }
+                    }
+                    if (!kept) {
+                        stashMedia.discardSharedFile(stagedFile);
+                    }
+                    settled();
+                }
+
+                @Override
+                public void onImageDownloadFailed(String errorMessage, String code) {
+                    item.error = errorMessage;
+                    if (failFast) {
+                        fail(item);
+                    }
+                    settled();
+                }
+            }
+        );
+    }
+
+    private void fail(Item item) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            pending.clear();
+        }
+
+        stashMedia.cancel(tag);
+        for (Item staged : items) {
+            File file;
+            synchronized (this) {
+                file = staged.stagedFile;
+                staged.stagedFile = null;
+                staged.uri = null;
+            }
+            if (file != null) {
+                stashMedia.discardSharedFile(file);
+            }
+        }
+
+        callback.onFailed("Failed to share " + item.url + ": " + item.error);
+    }
+
+    private void settled() {
+        Item next;
+        boolean done;
+
+        synchronized (this) {
+            next = pending.poll();
+            done = --remaining == 0 && !failed;
+        }
+
+        if (next != null) {
+            download(next);
+        }
+
+        if (done) {
+            callback.onStaged(items);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staging area for files handed to other apps through the FileProvider.
+ *
+ * Every share gets its own directory, so the recipient still sees the requested file name while two
+ * shares with the same title never overwrite each other. A staged file is referenced until the
+ * share sheet returns, and kept for a grace period after that since many targets (chat apps
+ * uploading in the background) keep reading after they hand control back. Unreferenced files are
+ * swept on a low-priority thread once their grace period is over or when the area grows past its
+ * size budget; anything older than the age budget is removed regardless.
+ */
+class ShareCache {
+
+    private static final String TAG = "StashMedia";
+
+    static final long DEFAULT_MAX_SIZE = 50L * 1024 * 1024;
+    static final long DEFAULT_MAX_AGE = TimeUnit.HOURS.toMillis(24);
+    static final long RELEASE_GRACE = TimeUnit.MINUTES.toMillis(5);
+
+    private final File directory;
+    private final long maxSize;
+    private final long maxAge;
+
+    // Files whose share sheet is still open
+    private final Set<File> references = new HashSet<>();
+    // File -> uptime at which its share sheet returned
+    private final Map<File, Long> releasedAt = new HashMap<>();
+
+    private final ScheduledExecutorService sweeper = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "StashMedia-share-sweeper");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ShareCache(File directory, long maxSize, long maxAge) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+
+        // Nothing from a previous process can still be referenced
+        sweeper.execute(this::sweep);
+    }
+
+    /**
+     * Reserves a fresh file for a share. It is referenced until {@link #release(File)}.
+     */
+    synchronized File stage(String name) {
+        File shareDir = new File(directory, UUID.randomUUID().toString());
+        shareDir.mkdirs();
+
+        File file = new File(shareDir, sanitize(name));
+        references.add(file);
+        return file;
+    }
+
+    /**
+     * Called once the share sheet returns. The file stays around for {@link #RELEASE_GRACE}
+     * afterwards.
+     */
+    void release(File file) {
+        synchronized (this) {
+            if (!references.remove(file)) {
+                return;
+            }
+            releasedAt.put(file, SystemClock.elapsedRealtime());
+        }
+
+        sweeper.schedule(this::sweep, RELEASE_GRACE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases a file whose share never got off the ground, without a grace period.
+     */
+    void discard(File file) {
+        synchronized (this) {
+            references.remove(file);
+            releasedAt.remove(file);
+        }
+        delete(file);
+    }
+
+    /**
+     * Checks the budgets in the background, to be called after new files were written.
+     */
+    void trim() {
+        sweeper.execute(this::sweep);
+    }
+
+    private void sweep() {
+        File[] shareDirs = directory.listFiles();
+        if (shareDirs == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long uptime = SystemClock.elapsedRealtime();
+        List<File> candidates = new ArrayList<>();
+        long size = 0;
+
+        synchronized (this) {
+            for (File shareDir : shareDirs) {
+                File[] files = shareDir.listFiles();
+                if (files == null || files.length == 0) {
+                    // Staged but not written yet, or already emptied
+                    if (!isReferencedDir(shareDir) && now - shareDir.lastModified() > RELEASE_GRACE) {
+                        shareDir.delete();
+                    }
+                    continue;
+                }
+
+                for (File file : files) {
+                    if (now - file.lastModified() > maxAge) {
+                        Log.d(TAG, "Removing expired share file " + file.getName());
+                        references.remove(file);
+                        releasedAt.remove(file);
+                        delete(file);
+                        continue;
+                    }
+
+                    size += file.length();
+                    if (references.contains(file)) {
+                        continue;
+                    }
+
+                    Long released = releasedAt.get(file);
+                    if (released == null || uptime - released >= RELEASE_GRACE) {
+                        // Unknown files are leftovers from a previous process
+                        releasedAt.remove(file);
+                        size -= file.length();
+                        delete(file);
+                    } else {
+                        candidates.add(file);
+                    }
+                }
+            }
+
+            // Over budget: give up on the grace period, oldest first. Referenced files are never removed
+            candidates.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : candidates) {
+                if (size <= maxSize) {
+                    break;
+                }
+                size -= file.length();
+                releasedAt.remove(file);
+                delete(file);
+            }
+        }
+    }
+
+    private boolean isReferencedDir(File shareDir) {
+        for (File file : references) {
+            if (shareDir.equals(file.getParentFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void delete(File file) {
+        file.delete();
+        File parent = file.getParentFile();
+        if (parent != null) {
+            // Only succeeds once the directory is empty
+            parent.delete();
+        }
+    }
+
+    private static String sanitize(String name) {
+        String safe = name.replaceAll("[/\\\\:*?\"<>|\\x00-\\x1f]", "_").trim();
+        return safe.isEmpty() || safe.startsWith(".") ? "Image" + safe : safe;
+    }
+}
@@ -1,7 +1,9 @@
 package dev.harding.capacitor.stashmedia;
 
 import android.content.ClipData;
+import android.content.ClipDescription;
 import android.content.ClipboardManager;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -9,29 +11,69 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
-import android.webkit.MimeTypeMap;
 import androidx.core.content.FileProvider;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import okhttp3.Call;
-import okhttp3.Callback;
+import okhttp3.EventListener;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
+import okio.HashingSink;
+import okio.HashingSource;
+import okio.Okio;
+import okio.Sink;
 
 public class StashMedia {
 
     private OkHttpClient client;
+    private MediaCache cache;
+    private MediaIndex index;
+    private ShareCache shareCache;
+    private final Metrics metrics = new Metrics();
+    private final ResourceGovernor governor;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, VideoFlight> videoFlights = new HashMap<>();
+    // Clipboard files still being written, which a concurrent copy must leave alone
+    private final Set<File> stagingClipboardFiles = new HashSet<>();
+    private final MediaFetcher fetcher;
+    private final Thumbnails thumbnails;
+    private final TransferProfile transferProfile;
+    private final HostConcurrency hostConcurrency;
+    private volatile TransferProfile.Observer tuningObserver;
 
-    public StashMedia(String userAgent) {
-        this.client = new OkHttpClient.Builder()
+    /**
+     * @param baseClient the app's own client to share connections and TLS sessions with, or null
+     */
+    public StashMedia(Context context, String userAgent, OkHttpClient baseClient, StashMediaConfig options) {
+        this.cache = new MediaCache(new File(context.getCacheDir(), "stash-media"), options.cacheSize);
+        this.index = new MediaIndex(context);
+        this.shareCache = new ShareCache(
+            new File(context.getCacheDir(), "stash-media-share"),
+            options.shareCacheSize,
+            options.shareCacheMaxAge
+        );
+        this.governor = new ResourceGovernor(options.memoryBudget, options.maxConcurrentWriters, options.rejectWhenBusy, metrics);
+        this.client = options
+            .newBuilder(baseClient, executor)
+            .eventListenerFactory(
+                MetricsEventListener.factory(metrics, baseClient != null ? baseClient.eventListenerFactory() : call -> EventListener.NONE)
+            )
             .addInterceptor(chain -> {
                 Request originalRequest = chain.request();
                 Request requestWithUserAgent = originalRequest.newBuilder()
@@ -40,58 +82,234 @@ public class StashMedia {
                 return chain.proceed(requestWithUserAgent);
             })
             .build();
+        this.fetcher = new MediaFetcher(client, cache, new File(context.getCacheDir(), "stash-media-spool"), executor);
+        this.thumbnails = new Thumbnails(this, new File(context.getCacheDir(), "stash-media-thumbnails"), options.thumbnailCacheSize, executor);
+        this.transferProfile = options.transferProfile;
+        this.hostConcurrency = new HostConcurrency(transferProfile, client.dispatcher().getMaxRequestsPerHost(), this::reportTuning);
+
+        File videoDir = new File(context.getCacheDir(), "stash-media-video");
+        executor.execute(() -> ResumableDownload.sweep(videoDir));
+        // Not on the executor, where it could race the first batch for its staged files
+        MediaBatch.sweep(context);
     }
 
-    public void copyPhotoToClipboard(Context context, String imageUrl) {
+    /**
+     * Copies an image to the clipboard. By default the original bytes are streamed into a cache file
+     * served by the app's FileProvider, so the image is never decoded. With {@code reencode} the image
+     * is decoded and inserted into the gallery instead, for paste targets that only accept
+     * MediaStore URIs.
+     *
+     * @param id optional identifier that can be passed to {@link #cancel(String)}
+     */
+    public void copyPhotoToClipboard(Context context, String imageUrl, boolean reencode, String id, StashMediaCallback stashMediaCallback) {
+        fetch(
+            imageUrl,
+            id,
+            new MediaCallback() {
+                @Override
+                public void onFailure(IOException e) {
+                    Log.e("StashMedia", "Failed to fetch image data: " + e.getMessage());
+                    stashMediaCallback.onError("Failed to fetch image data: " + e.getMessage(), null);
+                }
+
+                @Override
+                public void onResponse(MediaResponse media) {
+                    try {
+                        if (reencode) {
+                            copyDecodedPhotoToClipboard(context, media, stashMediaCallback);
+                        } else {
+                            copyStreamedPhotoToClipboard(context, media, stashMediaCallback);
+                        }
+                    } catch (RuntimeException e) {
+                        // Thrown on the download thread, where it would otherwise leave the call hanging
+                        Log.e("StashMedia", "Failed to copy image to clipboard: " + e.getMessage());
+                        stashMediaCallback.onError("Failed to copy image to clipboard: " + e.getMessage(), null);
+                    }
+                }
+            }
+        );
+    }
+
+    private void copyStreamedPhotoToClipboard(Context context, MediaResponse media, StashMediaCallback stashMediaCallback) {
+        // Sniffed, see MediaTypes, so a generic or missing Content-Type is no reason to refuse
+        String mimeType = media.contentType();
+        if (mimeType == null || !mimeType.startsWith("image/")) {
+            Log.e("StashMedia", "Invalid content type for clipboard: " + mimeType);
+            stashMediaCallback.onError("URL does not point to a valid image", StashMediaException.UNSUPPORTED_MEDIA);
+            return;
+        }
+
+        File outputFile;
+        Transfer.Stats stats;
         try {
-            // Fetch the image from the URL
-            Bitmap bitmap = fetchImageFromURL(imageUrl);
-
-            if (bitmap != null) {
-                // Copy the image to the clipboard
-                Uri imageUri = bitmapToUri(context, bitmap);
-                copyImageToClipboard(context, imageUri);
-                Log.d("StashMedia", "Image copied to clipboard");
-            } else {
-                Log.e("StashMedia", "Failed to decode image for clipboard. Format may not be supported on this Android version.");
+            ResourceGovernor.Lease lease = governor.acquire(ResourceGovernor.BUFFER_COST, true);
+            try {
+                outputFile = stageClipboardFile(context, mimeType);
+                try {
+                    stats = Transfer.copy(media.source(), outputFile);
+                } catch (IOException e) {
+                    finishClipboardFile(outputFile, false);
+                    throw e;
+                }
+            } finally {
+                lease.close();
             }
         } catch (IOException e) {
             Log.e("StashMedia", "Failed to fetch image data: " + e.getMessage());
+            stashMediaCallback.onError("Failed to fetch image data: " + e.getMessage(), StashMediaException.code(e));
+            return;
         }
+
+        boolean copied = false;
+        try {
+            Uri imageUri = FileProvider.getUriForFile(context, context.getPackageName() + ".fileprovider", outputFile);
+            copied = copyImageToClipboard(context, imageUri, mimeType);
+        } finally {
+            finishClipboardFile(outputFile, copied);
+        }
+        Log.d("StashMedia", "Image copied to clipboard: " + stats);
+        stashMediaCallback.onSuccess();
     }
 
-    private Bitmap fetchImageFromURL(String imageUrl) throws IOException {
-        Request request = new Request.Builder().url(imageUrl).build();
+    private void copyDecodedPhotoToClipboard(Context context, MediaResponse media, StashMediaCallback stashMediaCallback) {
+        Uri imageUri;
+        try {
+            ResourceGovernor.Lease lease = governor.acquire(ImageTranscoder.decodedBytes(media.source()), true);
+            try {
+                long decodeStart = Metrics.start();
+                Bitmap bitmap = BitmapFactory.decodeStream(media.source().inputStream());
+                metrics.recordSince(Metrics.IMAGE_DECODE, decodeStart);
+
+                if (bitmap == null) {
+                    Log.e("StashMedia", "Failed to decode image for clipboard. Format may not be supported on this Android version.");
+                    stashMediaCallback.onError("Failed to decode image for clipboard. Format may not be supported on this Android version.", null);
+                    return;
+                }
 
-        try (Response response = client.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                Log.e("StashMedia", "Failed to fetch image: " + response.message());
-                throw new IOException("Failed to fetch image: " + response.message());
+                try {
+                    imageUri = bitmapToUri(context, bitmap);
+                } finally {
+                    // Return the memory as soon as the lease does
+                    bitmap.recycle();
+                }
+            } finally {
+                lease.close();
             }
+        } catch (IOException e) {
+            Log.e("StashMedia", "Failed to decode image for clipboard: " + e.getMessage());
+            stashMediaCallback.onError("Failed to decode image for clipboard: " + e.getMessage(), StashMediaException.code(e));
+            return;
+        }
+
+        if (imageUri == null) {
+            stashMediaCallback.onError("Failed to create image URI", null);
+            return;
+        }
 
-            return BitmapFactory.decodeStream(response.body().byteStream());
+        copyImageToClipboard(context, imageUri);
+        Log.d("StashMedia", "Image copied to clipboard");
+        stashMediaCallback.onSuccess();
+        finishForCache(media);
+    }
+
+    /**
+     * Reads what a decoder left of the body, since the cache only keeps bodies read to EOF. Done
+     * after the result has been delivered, so that it delays nothing but the download itself.
+     */
+    private static void finishForCache(MediaResponse media) {
+        if (media.isFromCache()) {
+            return;
+        }
+        try {
+            media.source().readAll(Okio.blackhole());
         } catch (IOException e) {
-            Log.e("StashMedia", "Failed to fetch image: " + e.getMessage());
-            throw e;
+            Log.e("StashMedia", "Failed to cache image: " + e.getMessage());
         }
     }
 
-    private Uri bitmapToUri(Context context, Bitmap bitmap) {
-        Uri imageUri = null;
+    /**
+     * Cancels the in-flight download started with the given id, if any.
+     *
+     * @return whether a matching call was found
+     */
+    public boolean cancel(String id) {
+        // Fetches that joined another download of the same URL have no call of their own
+        boolean canceled = fetcher.cancel(id);
+        // Video saves share one untagged download per URL
+        canceled |= cancelVideoSaves(id);
 
-        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream()) {
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, bytes);
+        for (Call call : client.dispatcher().queuedCalls()) {
+            if (id.equals(call.request().tag(String.class))) {
+                call.cancel();
+                canceled = true;
+            }
+        }
+        for (Call call : client.dispatcher().runningCalls()) {
+            if (id.equals(call.request().tag(String.class))) {
+                call.cancel();
+                canceled = true;
+            }
+        }
 
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
-            String dateTimeString = dateFormat.format(new Date());
+        return canceled;
+    }
 
-            String path = MediaStore.Images.Media.insertImage(context.getContentResolver(), bitmap, "Image_" + dateTimeString, null);
-            imageUri = Uri.parse(path);
-        } catch (IOException e) {
-            Log.e("StashMedia", "Failed to convert bitmap to URI: " + e.getMessage());
+    /**
+     * Pass the file to {@link #finishClipboardFile} once the copy is done with it, either way.
+     */
+    private File stageClipboardFile(Context context, String mimeType) {
+        File clipboardDir = new File(context.getCacheDir(), "stash-media-clipboard");
+        clipboardDir.mkdirs();
+
+        String fileExtension = MediaTypes.extension(mimeType);
+        String fileName = "Image_" + System.currentTimeMillis() + (fileExtension != null ? "." + fileExtension : "");
+        File file = new File(clipboardDir, fileName);
+        synchronized (stagingClipboardFiles) {
+            stagingClipboardFiles.add(file);
+        }
+        return file;
+    }
+
+    /**
+     * Only the latest clipboard image is kept. Once {@code file} is on the clipboard, the previous
+     * clip's file is removed; until then it is left alone, so a failed copy does not break the
+     * image that is still on the clipboard.
+     *
+     * @param copied whether {@code file} made it onto the clipboard, otherwise it is removed instead
+     */
+    private void finishClipboardFile(File file, boolean copied) {
+        synchronized (stagingClipboardFiles) {
+            stagingClipboardFiles.remove(file);
+            if (!copied) {
+                file.delete();
+                return;
+            }
+
+            File[] previous = file.getParentFile().listFiles();
+            if (previous != null) {
+                for (File other : previous) {
+                    if (!other.equals(file) && !stagingClipboardFiles.contains(other)) {
+                        other.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private Uri bitmapToUri(Context context, Bitmap bitmap) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        String dateTimeString = dateFormat.format(new Date());
+
+        // insertImage compresses the bitmap as it writes, so this is mostly encode time
+        long encodeStart = Metrics.start();
+        String path = MediaStore.Images.Media.insertImage(context.getContentResolver(), bitmap, "Image_" + dateTimeString, null);
+        metrics.recordSince(Metrics.IMAGE_ENCODE, encodeStart);
+        if (path == null) {
+            Log.e("StashMedia", "Failed to convert bitmap to URI");
+            return null;
         }
 
-        return imageUri;
+        return Uri.parse(path);
     }
 
     private void copyImageToClipboard(Context context, Uri imageUri) {
@@ -102,203 +320,785 @@ public class StashMedia {
         }
     }
 
+    /**
+     * @return false if there is no clipboard to copy to
+     */
+    private boolean copyImageToClipboard(Context context, Uri imageUri, String mimeType) {
+        ClipboardManager clipboardManager = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboardManager == null) {
+            return false;
+        }
+        // Set the MIME type explicitly, the FileProvider can only guess it from the extension
+        ClipData clipData = new ClipData(new ClipDescription("", new String[] { mimeType }), new ClipData.Item(imageUri));
+        clipboardManager.setPrimaryClip(clipData);
+        return true;
+    }
+
     interface StashMediaCallback {
         void onSuccess();
-        void onError(String errorMessage);
+
+        /**
+         * @param code see {@link StashMediaException}, or null
+         */
+        void onError(String errorMessage, String code);
+    }
+
+    interface SaveCallback {
+        /**
+         * @param existing true when an earlier save was returned instead of writing a new entry
+         */
+        void onSaved(Uri uri, boolean existing);
+
+        /**
+         * @param code see {@link StashMediaException}, or null
+         */
+        void onError(String errorMessage, String code);
     }
 
-    public void savePhoto(Context context, String url, StashMediaCallback stashMediaCallback) {
-        Request request = new Request.Builder().url(url).build();
+    /**
+     * @param dedupe return the gallery entry from an earlier save of the same URL or content instead
+     *     of inserting a new one
+     * @param transcode resize and/or re-encode the image before saving, or null to save the
+     *     original bytes
+     * @param id optional identifier that can be passed to {@link #cancel(String)}
+     * @param expectedSha256 hex digest the downloaded image must match, or null
+     */
+    public void savePhoto(
+        Context context,
+        String url,
+        String id,
+        boolean dedupe,
+        ImageTranscoder.Options transcode,
+        String expectedSha256,
+        SaveCallback saveCallback
+    ) {
+        if (!dedupe) {
+            downloadPhoto(context, url, id, false, transcode, expectedSha256, saveCallback);
+            return;
+        }
+
+        executor.execute(() -> {
+            Uri existing = findUnchanged(context, url, indexKey(url, transcode));
+            if (existing != null) {
+                Log.d("StashMedia", "Image already saved as " + existing);
+                saveCallback.onSaved(existing, true);
+                return;
+            }
+
+            downloadPhoto(context, url, id, true, transcode, expectedSha256, saveCallback);
+        });
+    }
 
-        client.newCall(request).enqueue(
-            new Callback() {
+    private void downloadPhoto(
+        Context context,
+        String url,
+        String id,
+        boolean dedupe,
+        ImageTranscoder.Options transcode,
+        String expectedSha256,
+        SaveCallback saveCallback
+    ) {
+        fetch(
+            url,
+            id,
+            new MediaCallback() {
                 @Override
-                public void onFailure(Call call, IOException e) {
+                public void onFailure(IOException e) {
                     Log.e("StashMedia", "Failed to fetch image data: " + e.getMessage());
-                    stashMediaCallback.onError("Failed to fetch image data: " + e.getMessage());
+                    saveCallback.onError("Failed to fetch image data: " + e.getMessage(), null);
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) {
+                public void onResponse(MediaResponse media) {
                     try {
-                        if (!response.isSuccessful()) {
-                            Log.e("StashMedia", "Failed to download image: " + response.message());
-                            stashMediaCallback.onError("Failed to download image: " + response.message());
-                            return;
+                        ResourceGovernor.Lease lease = governor.acquire(memoryCost(media, transcode), true);
+                        try {
+                            save(media);
+                        } finally {
+                            lease.close();
                         }
+                    } catch (IOException e) {
+                        Log.e("StashMedia", "Failed to save image: " + e.getMessage());
+                        saveCallback.onError("Failed to save image: " + e.getMessage(), StashMediaException.code(e));
+                    } catch (RuntimeException e) {
+                        // Such as a SecurityException from MediaStore, which would otherwise leave the call hanging
+                        Log.e("StashMedia", "Failed to save image: " + e.getMessage());
+                        saveCallback.onError("Failed to save image: " + e.getMessage(), null);
+                    }
+                }
 
-                        String mimeType = response.header("Content-Type");
+                private void save(MediaResponse media) throws IOException {
+                    String sourceType = media.contentType();
+                    Uri collection = MediaTypes.collection(sourceType);
+                    if (collection == null) {
+                        throw new StashMediaException(StashMediaException.UNSUPPORTED_MEDIA, "Not an image or video: " + sourceType);
+                    }
+                    // Animations are often served as MP4, which goes to the gallery untouched
+                    boolean video = MediaTypes.isVideo(sourceType);
+                    ImageTranscoder.Options imageTranscode = video ? null : transcode;
+                    String mimeType = imageTranscode == null ? sourceType : imageTranscode.outputMimeType(sourceType);
+                    ContentResolver resolver = context.getContentResolver();
 
-                        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
-                        String dateTimeString = dateFormat.format(new Date());
+                    ContentValues contentValues = new ContentValues();
+                    contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, (video ? "Video_" : "Image_") + timestamp());
+                    contentValues.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
 
-                        ContentValues contentValues = new ContentValues();
-                        contentValues.put(MediaStore.Images.Media.DISPLAY_NAME, "Image_" + dateTimeString);
-                        contentValues.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
+                    Uri imageUri;
+                    String sha256;
+                    Uri saved;
+                    try (PendingMedia row = PendingMedia.insert(resolver, collection, contentValues, metrics)) {
+                        imageUri = row.uri;
 
-                        Uri imageUri = context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, contentValues);
+                        // The transcoder reads what it needs through this too, so the check covers the
+                        // download either way. Without transcoding what is read is what is written,
+                        // which is hashed below anyway
+                        VerifyingSource verifying = VerifyingSource.wrap(
+                            media.source(),
+                            media.contentLength(),
+                            imageTranscode != null ? expectedSha256 : null
+                        );
+                        BufferedSource source = Okio.buffer(verifying);
 
-                        if (imageUri == null) {
-                            Log.e("StashMedia", "Failed to create image URI");
-                            stashMediaCallback.onError("Failed to create image URI");
-                            return;
+                        // Hash what is written rather than what is read, so a transcoded save is indexed by
+                        // its own content; either way it costs no extra pass over the data
+                        long writeStart = Metrics.start();
+                        try (HashingSink hashing = HashingSink.sha256(Transfer.sink(resolver, imageUri))) {
+                            Transfer.Stats stats = imageTranscode == null
+                                ? Transfer.copy(source, hashing)
+                                : ImageTranscoder.transcode(source, sourceType, imageTranscode, hashing, metrics);
+                            // A decoder may stop before the end of the body
+                            source.readAll(Okio.blackhole());
+                            metrics.recordSince(Metrics.MEDIASTORE_WRITE, writeStart);
+                            Log.d("StashMedia", (video ? "Video" : "Image") + " saved to gallery: " + stats);
+                            sha256 = hashing.hash().hex();
                         }
 
-                        try (
-                            OutputStream outputStream = context.getContentResolver().openOutputStream(imageUri);
-                            BufferedInputStream inputStream = new BufferedInputStream(response.body().byteStream())
-                        ) {
-                            if (outputStream == null) {
-                                Log.e("StashMedia", "Output stream is null");
-                                stashMediaCallback.onError("Failed to download image: Output stream is null");
-                                return;
-                            }
-
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                            outputStream.flush();
-                            Log.d("StashMedia", "Image saved to gallery");
-                            stashMediaCallback.onSuccess();
-                        } catch (IOException e) {
-                            Log.e("StashMedia", "Failed to save image: " + e.getMessage());
-                            stashMediaCallback.onError("Failed to save image: " + e.getMessage());
+                        verifying.verify();
+                        if (imageTranscode == null) {
+                            VerifyingSource.checkSha256(expectedSha256, sha256);
+                        }
+                        saved = findDuplicate(resolver, sha256, dedupe);
+                        if (saved == null) {
+                            row.publish();
+                            saved = imageUri;
                         }
-                    } finally {
-                        response.close();
                     }
+
+                    index.put(indexKey(url, transcode), media.etag(), media.lastModified(), sha256, saved);
+                    saveCallback.onSaved(saved, !saved.equals(imageUri));
                 }
             }
         );
     }
 
-    public void saveVideo(Context context, String url, StashMediaCallback stashMediaCallback) {
-        Request request = new Request.Builder().url(url).build();
+    /**
+     * What saving or staging the response holds in memory, see {@link ResourceGovernor}.
+     */
+    private static long memoryCost(MediaResponse media, ImageTranscoder.Options transcode) throws IOException {
+        return transcode == null || MediaTypes.isVideo(media.contentType())
+            ? ResourceGovernor.BUFFER_COST
+            : ImageTranscoder.memoryCost(media.source(), media.contentType(), transcode);
+    }
+
+    private static String indexKey(String url, ImageTranscoder.Options transcode) {
+        return transcode == null ? url : transcode.indexKey(url);
+    }
 
-        client.newCall(request).enqueue(
-            new Callback() {
-                @Override
-                public void onFailure(Call call, IOException e) {
+    /**
+     * Looks up an earlier save of the URL and confirms with a conditional HEAD request that the
+     * resource has not changed since. Blocks; returns null if the media has to be downloaded.
+     *
+     * @param key what the save was indexed under, see {@link #indexKey}
+     */
+    private Uri findUnchanged(Context context, String url, String key) {
+        MediaIndex.Record record = index.findByUrl(key);
+        if (record == null || (record.etag == null && record.lastModified == null)) {
+            return null;
+        }
+        if (!index.isPresent(context.getContentResolver(), record)) {
+            return null;
+        }
+
+        Request.Builder builder = new Request.Builder().url(url).head();
+        if (record.etag != null) {
+            builder.header("If-None-Match", record.etag);
+        }
+        if (record.lastModified != null) {
+            builder.header("If-Modified-Since", record.lastModified);
+        }
+
+        try (Response response = client.newCall(builder.build()).execute()) {
+            if (response.code() == 304) {
+                return record.uri;
+            }
+
+            // Servers that ignore conditional HEAD still report their current validators
+            if (response.isSuccessful()) {
+                String etag = response.header("ETag");
+                String lastModified = response.header("Last-Modified");
+                boolean unchanged = record.etag != null
+                    ? record.etag.equals(etag)
+                    : record.lastModified.equals(lastModified);
+                if (unchanged) {
+                    return record.uri;
+                }
+            }
+        } catch (IOException e) {
+            Log.e("StashMedia", "Failed to check for changes, downloading again: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * With {@code dedupe}, finds an earlier save of the same content that is still in the gallery.
+     * Called before publishing, so that a duplicate row is discarded by {@link PendingMedia#close()}
+     * without ever becoming visible.
+     *
+     * @return the earlier entry's URI, or null if the new row should be published
+     */
+    private Uri findDuplicate(ContentResolver resolver, String sha256, boolean dedupe) {
+        if (!dedupe) {
+            return null;
+        }
+
+        MediaIndex.Record same = index.findByHash(sha256);
+        if (same == null || !index.isPresent(resolver, same)) {
+            return null;
+        }
+        Log.d("StashMedia", "Identical content already saved as " + same.uri);
+        return same.uri;
+    }
+
+    /**
+     * Millisecond precision, so saves within the same second don't collide on display name.
+     */
+    static String timestamp() {
+        return new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+    }
+
+    interface ProgressListener {
+        /**
+         * @param totalBytes -1 if the server did not send a length
+         */
+        void onProgress(long bytes, long totalBytes, long bytesPerSecond);
+    }
+
+    /**
+     * Videos are downloaded to a temp file first so that an interrupted transfer can resume where it
+     * left off, then published to the gallery in one step.
+     *
+     * @param id optional identifier that can be passed to {@link #cancel(String)}
+     * @param expectedSha256 hex digest the downloaded video must match, or null
+     */
+    public void saveVideo(
+        Context context,
+        String url,
+        String id,
+        boolean dedupe,
+        String expectedSha256,
+        ProgressListener progressListener,
+        SaveCallback saveCallback
+    ) {
+        executor.execute(() -> {
+            if (dedupe) {
+                Uri existing = findUnchanged(context, url, url);
+                if (existing != null) {
+                    Log.d("StashMedia", "Video already saved as " + existing);
+                    saveCallback.onSaved(existing, true);
+                    return;
+                }
+            }
+
+            // Saves of a URL that is already downloading wait for that download, since both would
+            // resume into the same temp file
+            VideoSave save = new VideoSave(id, dedupe, expectedSha256, progressListener, saveCallback);
+            VideoFlight flight;
+            synchronized (videoFlights) {
+                VideoFlight inFlight = videoFlights.get(url);
+                if (inFlight != null) {
+                    Log.d("StashMedia", "Joining in-flight download of " + url);
+                    inFlight.saves.add(save);
+                    return;
+                }
+
+                flight = new VideoFlight();
+                flight.saves.add(save);
+                flight.download = newVideoDownload(context, url, flight);
+                videoFlights.put(url, flight);
+            }
+
+            ResumableDownload.Result result = null;
+            String errorMessage = null;
+            String errorCode = null;
+            List<VideoSave> saves;
+            // Held until every waiter has published, so the temp file and the gallery writes count as
+            // one writer
+            ResourceGovernor.Lease lease = null;
+            while (true) {
+                try {
+                    if (lease == null) {
+                        lease = governor.acquire(ResourceGovernor.BUFFER_COST, true);
+                    }
+                    result = flight.download.run();
+                } catch (ResourceGovernor.BusyException e) {
+                    Log.e("StashMedia", "Failed to save video: " + e.getMessage());
+                    errorMessage = "Failed to save video: " + e.getMessage();
+                    errorCode = StashMediaException.BUSY;
+                } catch (ResumableDownload.InvalidContentType e) {
+                    Log.e("StashMedia", "Invalid content type for video: " + e.getMessage());
+                    errorMessage = "URL does not point to a valid video file";
+                } catch (ResumableDownload.PermanentFailure e) {
+                    Log.e("StashMedia", "Failed to download video: " + e.getMessage());
+                    errorMessage = "Failed to download video: " + e.getMessage();
+                } catch (IOException e) {
                     Log.e("StashMedia", "Failed to fetch video data: " + e.getMessage());
-                    stashMediaCallback.onError("Failed to fetch video data: " + e.getMessage());
+                    errorMessage = "Failed to fetch video data: " + e.getMessage();
                 }
 
-                @Override
-                public void onResponse(Call call, Response response) {
+                synchronized (videoFlights) {
+                    if (result == null && flight.download.isCanceled() && !flight.waiting().isEmpty()) {
+                        // Everyone waiting at the time canceled, but someone joined since. They
+                        // resume from the temp file the canceled download left behind.
+                        Log.d("StashMedia", "Handing canceled download of " + url + " to the next waiter");
+                        flight.download = newVideoDownload(context, url, flight);
+                        errorMessage = null;
+                        errorCode = null;
+                        continue;
+                    }
+                    videoFlights.remove(url);
+                    saves = flight.waiting();
+                }
+                break;
+            }
+
+            if (result == null) {
+                if (lease != null) {
+                    lease.close();
+                }
+                for (VideoSave waiter : saves) {
+                    waiter.callback.onError(errorMessage, errorCode);
+                }
+                return;
+            }
+
+            try {
+                for (VideoSave waiter : saves) {
                     try {
-                        if (!response.isSuccessful()) {
-                            Log.e("StashMedia", "Failed to download video: " + response.message());
-                            stashMediaCallback.onError("Failed to download video: " + response.message());
-                            return;
-                        }
+                        publishVideo(context, url, result, waiter);
+                    } catch (IOException e) {
+                        Log.e("StashMedia", "Failed to save video: " + e.getMessage());
+                        waiter.callback.onError("Failed to save video: " + e.getMessage(), StashMediaException.code(e));
+                    } catch (RuntimeException e) {
+                        Log.e("StashMedia", "Failed to save video: " + e.getMessage());
+                        waiter.callback.onError("Failed to save video: " + e.getMessage(), null);
+                    }
+                }
+            } finally {
+                lease.close();
+                flight.download.discard();
+            }
+        });
+    }
 
-                        String mimeType = response.header("Content-Type");
-                        if (mimeType == null || !mimeType.startsWith("video/")) {
-                            Log.e("StashMedia", "Invalid content type for video: " + mimeType);
-                            stashMediaCallback.onError("URL does not point to a valid video file");
-                            return;
-                        }
+    /**
+     * Untagged, since it belongs to every waiter of the flight; {@link #cancel(String)} only cancels
+     * it once all of them have canceled.
+     */
+    private ResumableDownload newVideoDownload(Context context, String url, VideoFlight flight) {
+        return new ResumableDownload(
+            client,
+            new File(context.getCacheDir(), "stash-media-video"),
+            url,
+            null,
+            "video/",
+            flight::onProgress,
+            transferProfile,
+            this::reportTuning
+        );
+    }
 
-                        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
-                        String dateTimeString = dateFormat.format(new Date());
+    /**
+     * The saves waiting on one video download. Guarded by {@code videoFlights}, except for progress,
+     * which is reported from the download thread.
+     */
+    private static final class VideoFlight {
 
-                        ContentValues contentValues = new ContentValues();
-                        contentValues.put(MediaStore.Video.Media.DISPLAY_NAME, "Video_" + dateTimeString);
-                        contentValues.put(MediaStore.Video.Media.MIME_TYPE, mimeType);
+        final List<VideoSave> saves = new CopyOnWriteArrayList<>();
+        ResumableDownload download;
 
-                        Uri videoUri = context.getContentResolver().insert(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, contentValues);
+        List<VideoSave> waiting() {
+            List<VideoSave> waiting = new ArrayList<>();
+            for (VideoSave save : saves) {
+                if (!save.canceled) {
+                    waiting.add(save);
+                }
+            }
+            return waiting;
+        }
 
-                        if (videoUri == null) {
-                            Log.e("StashMedia", "Failed to create video URI");
-                            stashMediaCallback.onError("Failed to create video URI");
-                            return;
-                        }
+        void onProgress(long bytes, long totalBytes, long bytesPerSecond) {
+            for (VideoSave save : saves) {
+                if (!save.canceled && save.progressListener != null) {
+                    save.progressListener.onProgress(bytes, totalBytes, bytesPerSecond);
+                }
+            }
+        }
+    }
 
-                        try (
-                            OutputStream outputStream = context.getContentResolver().openOutputStream(videoUri);
-                            BufferedInputStream inputStream = new BufferedInputStream(response.body().byteStream())
-                        ) {
-                            if (outputStream == null) {
-                                Log.e("StashMedia", "Output stream is null");
-                                stashMediaCallback.onError("Failed to download video: Output stream is null");
-                                return;
-                            }
+    private static final class VideoSave {
 
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                            outputStream.flush();
-                            Log.d("StashMedia", "Video saved to gallery");
-                            stashMediaCallback.onSuccess();
-                        } catch (IOException e) {
-                            Log.e("StashMedia", "Failed to save video: " + e.getMessage());
-                            stashMediaCallback.onError("Failed to save video: " + e.getMessage());
-                        }
-                    } finally {
-                        response.close();
+        final String id;
+        final boolean dedupe;
+        final String expectedSha256;
+        final ProgressListener progressListener;
+        final SaveCallback callback;
+        volatile boolean canceled;
+
+        VideoSave(String id, boolean dedupe, String expectedSha256, ProgressListener progressListener, SaveCallback callback) {
+            this.id = id;
+            this.dedupe = dedupe;
+            this.expectedSha256 = expectedSha256;
+            this.progressListener = progressListener;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Detaches the video saves with the given id from their downloads, canceling a download only
+     * once nobody is waiting on it anymore.
+     */
+    private boolean cancelVideoSaves(String id) {
+        List<VideoSave> canceled = new ArrayList<>();
+        synchronized (videoFlights) {
+            for (VideoFlight flight : videoFlights.values()) {
+                boolean found = false;
+                for (VideoSave save : flight.saves) {
+                    if (id.equals(save.id) && !save.canceled) {
+                        save.canceled = true;
+                        canceled.add(save);
+                        found = true;
                     }
                 }
+                if (found && flight.waiting().isEmpty()) {
+                    flight.download.cancel();
+                }
             }
-        );
+        }
+
+        for (VideoSave save : canceled) {
+            save.callback.onError("Failed to fetch video data: Canceled", null);
+        }
+        return !canceled.isEmpty();
     }
 
-    public void downloadAndSaveImageForSharing(Context context, String imageUrl, String title, ImageDownloadListener listener) {
-        Request request = new Request.Builder().url(imageUrl).build();
+    private void publishVideo(Context context, String url, ResumableDownload.Result result, VideoSave save) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(MediaStore.Video.Media.DISPLAY_NAME, "Video_" + timestamp());
+        contentValues.put(MediaStore.Video.Media.MIME_TYPE, result.contentType);
+
+        Uri videoUri;
+        String sha256;
+        Uri saved;
+        try (PendingMedia row = PendingMedia.insert(resolver, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, contentValues, metrics)) {
+            videoUri = row.uri;
+
+            try (HashingSource hashing = HashingSource.sha256(Okio.source(result.file)); BufferedSource source = Okio.buffer(hashing)) {
+                Transfer.Stats stats = Transfer.copy(source, resolver, videoUri);
+                metrics.recordDuration(Metrics.MEDIASTORE_WRITE, stats.elapsedNanos);
+                sha256 = hashing.hash().hex();
+                Log.d("StashMedia", "Video written to gallery: " + stats);
+                VerifyingSource.checkLength(result.length, stats.bytes);
+            }
+
+            VerifyingSource.checkSha256(save.expectedSha256, sha256);
+            saved = findDuplicate(resolver, sha256, save.dedupe);
+            if (saved == null) {
+                row.publish();
+                saved = videoUri;
+            }
+        }
+
+        index.put(url, result.etag, result.lastModified, sha256, saved);
+        Log.d("StashMedia", "Video saved to gallery");
+        save.callback.onSaved(saved, !saved.equals(videoUri));
+    }
+
+    /**
+     * @param transcode resize and/or re-encode the image before sharing, or null to share the
+     *     original bytes
+     */
+    public void downloadAndSaveImageForSharing(
+        Context context,
+        String imageUrl,
+        String title,
+        ImageTranscoder.Options transcode,
+        ImageDownloadListener listener
+    ) {
+        downloadAndSaveImageForSharing(context, imageUrl, title, transcode, null, listener);
+    }
 
-        client.newCall(request).enqueue(
-            new Callback() {
+    /**
+     * @param id optional identifier that can be passed to {@link #cancel(String)}
+     */
+    void downloadAndSaveImageForSharing(
+        Context context,
+        String imageUrl,
+        String title,
+        ImageTranscoder.Options transcode,
+        String id,
+        ImageDownloadListener listener
+    ) {
+        fetch(
+            imageUrl,
+            id,
+            new MediaCallback() {
                 @Override
-                public void onFailure(Call call, IOException e) {
-                    listener.onImageDownloadFailed();
+                public void onFailure(IOException e) {
+                    listener.onImageDownloadFailed("Failed to fetch image data: " + e.getMessage(), null);
                     e.printStackTrace();
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) {
+                public void onResponse(MediaResponse media) {
                     try {
-                        if (!response.isSuccessful()) {
-                            listener.onImageDownloadFailed();
-                            return;
+                        ResourceGovernor.Lease lease = governor.acquire(memoryCost(media, transcode), true);
+                        boolean staged;
+                        try {
+                            staged = stage(media);
+                        } finally {
+                            lease.close();
                         }
+                        if (staged) {
+                            finishForCache(media);
+                        }
+                    } catch (IOException e) {
+                        listener.onImageDownloadFailed("Failed to save image: " + e.getMessage(), StashMediaException.code(e));
+                    } catch (RuntimeException e) {
+                        Log.e("StashMedia", "Failed to save image: " + e.getMessage());
+                        listener.onImageDownloadFailed("Failed to save image: " + e.getMessage(), null);
+                    }
+                }
 
-                        String mimeType = response.header("Content-Type");
-                        String fileExtension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
-
-                        File cacheDir = context.getCacheDir();
-                        File outputFile = new File(cacheDir, title + "." + fileExtension);
+                /**
+                 * @return whether the image was handed to the listener
+                 */
+                private boolean stage(MediaResponse media) {
+                    String sourceType = media.contentType();
+                    ImageTranscoder.Options imageTranscode = MediaTypes.isVideo(sourceType) ? null : transcode;
+                    String mimeType = imageTranscode == null ? sourceType : imageTranscode.outputMimeType(sourceType);
+                    // Left off rather than naming the file "title.null" when the type is unknown
+                    String fileExtension = MediaTypes.extension(mimeType);
+                    File outputFile = shareCache.stage(fileExtension != null ? title + "." + fileExtension : title);
 
-                        try (
-                            FileOutputStream outputStream = new FileOutputStream(outputFile);
-                            InputStream inputStream = response.body().byteStream()
-                        ) {
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
+                    try {
+                        Transfer.Stats stats;
+                        if (imageTranscode == null) {
+                            stats = Transfer.copy(media.source(), outputFile);
+                        } else {
+                            try (Sink sink = Okio.sink(outputFile)) {
+                                stats = ImageTranscoder.transcode(media.source(), sourceType, imageTranscode, sink, metrics);
                             }
                         }
+                        Log.d("StashMedia", "Image staged for sharing: " + stats);
+                        shareCache.trim();
 
-                        outputFile.deleteOnExit();
                         Uri imageUri = FileProvider.getUriForFile(context, context.getPackageName() + ".fileprovider", outputFile);
 
-                        listener.onImageDownloaded(imageUri);
+                        listener.onImageDownloaded(imageUri, outputFile);
+                        return true;
                     } catch (IOException e) {
-                        listener.onImageDownloadFailed();
+                        shareCache.discard(outputFile);
+                        listener.onImageDownloadFailed("Failed to save image: " + e.getMessage(), null);
                         e.printStackTrace();
-                    } finally {
-                        response.close();
+                        return false;
                     }
                 }
             }
         );
     }
 
+    /**
+     * To be called once the share sheet for a file from {@link ImageDownloadListener} has returned.
+     */
+    public void releaseSharedFile(File file) {
+        shareCache.release(file);
+    }
+
+    void discardSharedFile(File file) {
+        shareCache.discard(file);
+    }
+
     interface ImageDownloadListener {
-        void onImageDownloaded(Uri imageUri);
-        void onImageDownloadFailed();
+        /**
+         * @param stagedFile pass to {@link #releaseSharedFile(File)} once the share sheet returns
+         */
+        void onImageDownloaded(Uri imageUri, File stagedFile);
+
+        /**
+         * @param code see {@link StashMediaException}, or null
+         */
+        void onImageDownloadFailed(String errorMessage, String code);
+    }
+
+    /**
+     * Stages several images for one share sheet.
+     *
+     * @param failFast give up on the first failure instead of sharing whatever could be staged
+     */
+    public void shareImages(
+        Context context,
+        List<ShareBatch.Item> items,
+        int concurrency,
+        boolean failFast,
+        ImageTranscoder.Options transcode,
+        ShareBatch.ShareCallback callback
+    ) {
+        new ShareBatch(this, context, items, concurrency, failFast, transcode, callback).start();
+    }
+
+    /**
+     * A small WebP preview of an image, decoded from as little of it as possible and kept in memory
+     * for repeat requests.
+     *
+     * @param maxSize longest edge in pixels
+     * @param asFile return a cache file instead of a data URL
+     */
+    public void getThumbnail(String url, int maxSize, boolean asFile, Thumbnails.ThumbnailCallback callback) {
+        thumbnails.get(url, maxSize, asFile, callback);
+    }
+
+    /**
+     * @param concurrency downloads per host, or 0 to adapt it to what each host sustains
+     */
+    public void saveMediaBatch(Context context, List<MediaBatch.Item> items, int concurrency, MediaBatch.BatchCallback callback) {
+        HostConcurrency adaptive = null;
+        if (concurrency <= 0) {
+            if (transferProfile.adaptiveConcurrency) {
+                adaptive = hostConcurrency;
+            } else {
+                concurrency = transferProfile.initialConcurrency;
+            }
+        }
+        new MediaBatch(this, context, items, concurrency, adaptive, callback).start();
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    ResourceGovernor governor() {
+        return governor;
+    }
+
+    HostConcurrency hostConcurrency() {
+        return hostConcurrency;
+    }
+
+    public JSObject getMetrics() {
+        JSArray histograms = new JSArray();
+        for (Metrics.Snapshot snapshot : metrics.snapshot()) {
+            JSObject histogram = new JSObject();
+            histogram.put("name", snapshot.name);
+            histogram.put("count", snapshot.count);
+            histogram.put("sum", snapshot.sum);
+            histogram.put("mean", snapshot.mean());
+            histogram.put("min", snapshot.min);
+            histogram.put("max", snapshot.max);
+            histogram.put("p50", snapshot.p50);
+            histogram.put("p90", snapshot.p90);
+            histogram.put("p99", snapshot.p99);
+            histograms.put(histogram);
+        }
+
+        JSObject counters = new JSObject();
+        for (Map.Entry<String, Long> counter : metrics.counters().entrySet()) {
+            counters.put(counter.getKey(), (long) counter.getValue());
+        }
+
+        JSObject result = new JSObject();
+        result.put("since", metrics.since());
+        result.put("histograms", histograms);
+        result.put("counters", counters);
+        return result;
+    }
+
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    /**
+     * @param observer receives every recorded value, or null to stop
+     */
+    public void setMetricsObserver(Metrics.Observer observer) {
+        metrics.setObserver(observer);
+    }
+
+    /**
+     * @param observer receives every change the adaptive transfer controller makes, or null to stop
+     */
+    public void setTuningObserver(TransferProfile.Observer observer) {
+        this.tuningObserver = observer;
+    }
+
+    private void reportTuning(TransferProfile.Decision decision) {
+        Log.d(
+            "StashMedia",
+            "Transfer " + decision.kind + " for " + decision.host + ": " + decision.previous + " -> " + decision.value + " (" + decision.reason + ")"
+        );
+        TransferProfile.Observer current = tuningObserver;
+        if (current != null) {
+            current.onDecision(decision);
+        }
+    }
+
+    public JSObject getResourceUsage() {
+        ResourceGovernor.Usage usage = governor.usage();
+
+        JSObject result = new JSObject();
+        result.put("memoryBytes", usage.memoryBytes);
+        result.put("memoryBudget", usage.memoryBudget);
+        result.put("writers", usage.writers);
+        result.put("maxWriters", usage.maxWriters);
+        result.put("waiting", usage.waiting);
+        result.put("rejected", usage.rejected);
+        return result;
+    }
+
+    public JSObject getCacheStats() {
+        MediaCache.Stats stats = cache.stats();
+
+        JSObject result = new JSObject();
+        result.put("hits", stats.hits);
+        result.put("misses", stats.misses);
+        result.put("evictions", stats.evictions);
+        result.put("entryCount", stats.entryCount);
+        result.put("size", stats.size);
+        result.put("maxSize", stats.maxSize);
+        return result;
+    }
+
+    interface MediaCallback {
+        /**
+         * Called on a background thread. The response is closed once this returns.
+         */
+        void onResponse(MediaResponse media);
+        void onFailure(IOException e);
+    }
+
+    /**
+     * Fetches a URL through the media cache, see {@link MediaFetcher}.
+     */
+    void fetch(String url, MediaCallback callback) {
+        fetcher.fetch(url, null, callback);
+    }
+
+    /**
+     * @param tag attached to the OkHttp request so that {@link #cancel(String)} can find it
+     */
+    void fetch(String url, String tag, MediaCallback callback) {
+        fetcher.fetch(url, tag, callback);
     }
 }
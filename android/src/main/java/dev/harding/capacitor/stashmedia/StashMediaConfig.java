@@ -0,0 +1,152 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.util.Log;
+import com.getcapacitor.PluginConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * The {@code StashMedia} section of {@code capacitor.config}: HTTP client tuning, see
+ * {@link #newBuilder}, plus the sizes of the caches, the {@link ResourceGovernor} budgets and the
+ * {@link TransferProfile}. Client settings left unset keep OkHttp's default, or the setting of the
+ * app-provided client.
+ */
+class StashMediaConfig {
+
+    static final long DEFAULT_CACHE_SIZE = 100L * 1024 * 1024;
+
+    private static final int UNSET = -1;
+
+    int connectTimeout = UNSET;
+    int readTimeout = UNSET;
+    int writeTimeout = UNSET;
+    int maxIdleConnections = UNSET;
+    int keepAliveDuration = UNSET;
+    int maxRequests = UNSET;
+    int maxRequestsPerHost = UNSET;
+    String[] protocols;
+    long cacheSize = DEFAULT_CACHE_SIZE;
+    long shareCacheSize = ShareCache.DEFAULT_MAX_SIZE;
+    long shareCacheMaxAge = ShareCache.DEFAULT_MAX_AGE;
+    long memoryBudget = ResourceGovernor.DEFAULT_MEMORY_BUDGET;
+    int maxConcurrentWriters = ResourceGovernor.DEFAULT_MAX_WRITERS;
+    boolean rejectWhenBusy;
+    long thumbnailCacheSize = Thumbnails.DEFAULT_CACHE_SIZE;
+    TransferProfile transferProfile = new TransferProfile();
+
+    static StashMediaConfig fromConfig(PluginConfig config) {
+        StashMediaConfig options = new StashMediaConfig();
+        options.connectTimeout = config.getInt("connectTimeout", UNSET);
+        options.readTimeout = config.getInt("readTimeout", UNSET);
+        options.writeTimeout = config.getInt("writeTimeout", UNSET);
+        options.maxIdleConnections = config.getInt("maxIdleConnections", UNSET);
+        options.keepAliveDuration = config.getInt("keepAliveDuration", UNSET);
+        options.maxRequests = config.getInt("maxRequests", UNSET);
+        options.maxRequestsPerHost = config.getInt("maxRequestsPerHost", UNSET);
+        options.protocols = config.getArray("protocols");
+
+        int cacheSizeMb = config.getInt("cacheSizeMb", UNSET);
+        if (cacheSizeMb != UNSET) {
+            options.cacheSize = cacheSizeMb * 1024L * 1024L;
+        }
+
+        int shareCacheSizeMb = config.getInt("shareCacheSizeMb", UNSET);
+        if (shareCacheSizeMb != UNSET) {
+            options.shareCacheSize = shareCacheSizeMb * 1024L * 1024L;
+        }
+        int shareCacheMaxAge = config.getInt("shareCacheMaxAge", UNSET);
+        if (shareCacheMaxAge != UNSET) {
+            options.shareCacheMaxAge = shareCacheMaxAge;
+        }
+
+        int thumbnailCacheSizeMb = config.getInt("thumbnailCacheSizeMb", UNSET);
+        if (thumbnailCacheSizeMb != UNSET) {
+            options.thumbnailCacheSize = thumbnailCacheSizeMb * 1024L * 1024L;
+        }
+
+        int memoryBudgetMb = config.getInt("memoryBudgetMb", UNSET);
+        if (memoryBudgetMb != UNSET) {
+            options.memoryBudget = memoryBudgetMb * 1024L * 1024L;
+        }
+        options.maxConcurrentWriters = config.getInt("maxConcurrentWriters", ResourceGovernor.DEFAULT_MAX_WRITERS);
+        String whenBusy = config.getString("whenBusy", "wait");
+        if ("reject".equals(whenBusy)) {
+            options.rejectWhenBusy = true;
+        } else if (!"wait".equals(whenBusy)) {
+            Log.e("StashMedia", "Ignoring unknown whenBusy value " + whenBusy);
+        }
+
+        TransferProfile profile = options.transferProfile;
+        profile.adaptiveConcurrency = config.getBoolean("adaptiveConcurrency", true);
+        profile.initialConcurrency = config.getInt("initialConcurrency", TransferProfile.DEFAULT_INITIAL_CONCURRENCY);
+        profile.maxConcurrencyPerHost = config.getInt("maxConcurrencyPerHost", TransferProfile.DEFAULT_MAX_CONCURRENCY);
+        profile.chunkTargetMillis = config.getInt("chunkTargetMs", TransferProfile.DEFAULT_CHUNK_TARGET_MILLIS);
+
+        return options;
+    }
+
+    /**
+     * @param base the app's own client, or null to start from scratch
+     * @param executor used for a new dispatcher, so OkHttp and background work share one thread pool
+     */
+    OkHttpClient.Builder newBuilder(OkHttpClient base, ExecutorService executor) {
+        OkHttpClient.Builder builder = base != null ? base.newBuilder() : new OkHttpClient.Builder();
+
+        if (connectTimeout != UNSET) {
+            builder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+        }
+        if (readTimeout != UNSET) {
+            builder.readTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        }
+        if (writeTimeout != UNSET) {
+            builder.writeTimeout(writeTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        // A shared client keeps its pool and dispatcher unless told otherwise; they are never mutated
+        // in place since the rest of the app relies on them
+        if (base == null || maxIdleConnections != UNSET || keepAliveDuration != UNSET) {
+            builder.connectionPool(
+                new ConnectionPool(
+                    maxIdleConnections != UNSET ? maxIdleConnections : 5,
+                    keepAliveDuration != UNSET ? keepAliveDuration : 5 * 60 * 1000,
+                    TimeUnit.MILLISECONDS
+                )
+            );
+        }
+        if (base == null || maxRequests != UNSET || maxRequestsPerHost != UNSET) {
+            Dispatcher dispatcher = new Dispatcher(executor);
+            if (maxRequests != UNSET) {
+                dispatcher.setMaxRequests(maxRequests);
+            }
+            if (maxRequestsPerHost != UNSET) {
+                dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+            }
+            builder.dispatcher(dispatcher);
+        }
+
+        if (protocols != null) {
+            List<Protocol> parsed = new ArrayList<>();
+            for (String protocol : protocols) {
+                try {
+                    parsed.add(Protocol.get(protocol));
+                } catch (Exception e) {
+                    Log.e("StashMedia", "Ignoring unknown protocol " + protocol);
+                }
+            }
+
+            try {
+                builder.protocols(parsed);
+            } catch (IllegalArgumentException e) {
+                Log.e("StashMedia", "Ignoring invalid protocols configuration: " + e.getMessage());
+            }
+        }
+
+        return builder;
+    }
+}
@@ -0,0 +1,38 @@
+package dev.harding.capacitor.stashmedia;
+
+import java.io.IOException;
+
+/**
+ * A failure with a machine-readable code that is passed on to JS as the rejection code.
+ */
+class StashMediaException extends IOException {
+
+    /**
+     * Turned away because the resource budget was exhausted, see {@link ResourceGovernor}.
+     */
+    static final String BUSY = "BUSY";
+
+    /**
+     * The downloaded or written bytes did not match the expected length or digest.
+     */
+    static final String VERIFICATION_FAILED = "VERIFICATION_FAILED";
+
+    /**
+     * The body is neither an image nor a video, judging by its first bytes and its Content-Type.
+     */
+    static final String UNSUPPORTED_MEDIA = "UNSUPPORTED_MEDIA";
+
+    final String code;
+
+    StashMediaException(String code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * @return the code of a {@link StashMediaException}, otherwise null
+     */
+    static String code(IOException e) {
+        return e instanceof StashMediaException ? ((StashMediaException) e).code : null;
+    }
+}
@@ -6,39 +6,152 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Observer;
+import androidx.work.WorkInfo;
+import com.getcapacitor.CapConfig;
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.OkHttpClient;
+import org.json.JSONObject;
 
 @CapacitorPlugin(name = "StashMedia")
 public class StashMediaPlugin extends Plugin {
 
+    private static volatile OkHttpClient sharedClient;
+    private static StashMedia instance;
+
     private StashMedia stashMedia;
+    private MediaQueue queue;
+    private Observer<List<WorkInfo>> queueObserver;
+
+    /**
+     * Use the app's own OkHttpClient, so that connections and TLS sessions are reused. Must be called
+     * before the plugin loads, e.g. in MainActivity before {@code super.onCreate()}.
+     */
+    public static void setHttpClient(OkHttpClient client) {
+        sharedClient = client;
+    }
+
+    /**
+     * The instance shared by the plugin and queued jobs, which may run before (or without) the
+     * plugin loading.
+     */
+    static synchronized StashMedia stashMedia(Context context) {
+        return instance != null ? instance : stashMedia(context, CapConfig.loadDefault(context));
+    }
+
+    private static synchronized StashMedia stashMedia(Context context, CapConfig config) {
+        if (instance == null) {
+            instance = new StashMedia(
+                context.getApplicationContext(),
+                config.getAppendedUserAgentString(),
+                sharedClient,
+                StashMediaConfig.fromConfig(config.getPluginConfiguration("StashMedia"))
+            );
+        }
+        return instance;
+    }
 
     @Override
     public void load() {
-        String userAgent = getBridge().getConfig().getAppendedUserAgentString();
-        stashMedia = new StashMedia(userAgent);
+        stashMedia = stashMedia(getContext(), getBridge().getConfig());
+        queue = new MediaQueue(getContext());
+        stashMedia.setMetricsObserver((name, value) -> {
+            if (!hasListeners("metrics")) {
+                return;
+            }
+
+            JSObject event = new JSObject();
+            event.put("name", name);
+            event.put("value", value);
+            notifyListeners("metrics", event);
+        });
+        stashMedia.setTuningObserver(decision -> {
+            if (!hasListeners("transferTuning")) {
+                return;
+            }
+
+            JSObject event = new JSObject();
+            event.put("kind", decision.kind);
+            event.put("host", decision.host);
+            event.put("previous", decision.previous);
+            event.put("value", decision.value);
+            event.put("bytesPerSecond", decision.bytesPerSecond);
+            if (decision.errorRate >= 0) {
+                event.put("errorRate", decision.errorRate);
+            }
+            event.put("reason", decision.reason);
+            notifyListeners("transferTuning", event);
+        });
+
+        // Also delivers jobs that finished while the app was not running
+        SharedPreferences reported = getContext().getSharedPreferences("stash-media-queue", Context.MODE_PRIVATE);
+        queueObserver = infos -> {
+            Set<String> previous = reported.getStringSet("reported", Collections.emptySet());
+            Set<String> finished = new HashSet<>();
+            for (WorkInfo info : infos) {
+                if (!info.getState().isFinished()) {
+                    continue;
+                }
+
+                String id = info.getId().toString();
+                finished.add(id);
+                if (!previous.contains(id)) {
+                    notifyListeners("jobComplete", MediaQueue.describe(info), true);
+                }
+            }
+            // Only ids WorkManager still knows about, so the set shrinks as finished work is pruned
+            reported.edit().putStringSet("reported", finished).apply();
+        };
+        new Handler(Looper.getMainLooper()).post(() -> queue.observe(queueObserver));
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        if (queueObserver != null) {
+            Observer<List<WorkInfo>> observer = queueObserver;
+            new Handler(Looper.getMainLooper()).post(() -> queue.removeObserver(observer));
+        }
     }
 
     @PluginMethod
     public void copyPhotoToClipboard(PluginCall call) {
         Context context = getContext();
         String url = call.getString("url");
+        boolean reencode = call.getBoolean("reencode", false);
+        String id = call.getString("id");
 
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
+        // Only the reencode path writes to shared storage
+        if (reencode && Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
             // Check if permission is not granted
             if (
                 ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED
@@ -52,15 +165,55 @@ public class StashMediaPlugin extends Plugin {
             }
         }
 
-        stashMedia.copyPhotoToClipboard(context, url);
-        call.resolve();
+        stashMedia.copyPhotoToClipboard(
+            context,
+            url,
+            reencode,
+            id,
+            new StashMedia.StashMediaCallback() {
+                @Override
+                public void onSuccess() {
+                    call.resolve();
+                }
+
+                @Override
+                public void onError(String errorMessage, String code) {
+                    call.reject(errorMessage, code);
+                }
+            }
+        );
+    }
+
+    @PluginMethod
+    public void cancel(PluginCall call) {
+        String id = call.getString("id");
+
+        if (id == null) {
+            call.reject("id parameter is missing", "INVALID_PARAMETERS");
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("canceled", stashMedia.cancel(id));
+        call.resolve(ret);
     }
 
     @PluginMethod
     public void savePhoto(PluginCall call) {
         String url = call.getString("url");
+        String id = call.getString("id");
+        boolean dedupe = call.getBoolean("dedupe", false);
+        String sha256 = call.getString("sha256");
         Context context = getContext();
 
+        ImageTranscoder.Options transcode;
+        try {
+            transcode = transcodeOptions(call);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage(), "INVALID_PARAMETERS");
+            return;
+        }
+
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
             // Check if permission is not granted
             if (
@@ -78,15 +231,19 @@ public class StashMediaPlugin extends Plugin {
         stashMedia.savePhoto(
             context,
             url,
-            new StashMedia.StashMediaCallback() {
+            id,
+            dedupe,
+            transcode,
+            sha256,
+            new StashMedia.SaveCallback() {
                 @Override
-                public void onSuccess() {
-                    call.resolve();
+                public void onSaved(Uri uri, boolean existing) {
+                    call.resolve(saveResult(uri, existing));
                 }
 
                 @Override
-                public void onError(String errorMessage) {
-                    call.reject(errorMessage);
+                public void onError(String errorMessage, String code) {
+                    call.reject(errorMessage, code);
                 }
             }
         );
@@ -95,6 +252,9 @@ public class StashMediaPlugin extends Plugin {
     @PluginMethod
     public void saveVideo(PluginCall call) {
         String url = call.getString("url");
+        String id = call.getString("id");
+        boolean dedupe = call.getBoolean("dedupe", false);
+        String sha256 = call.getString("sha256");
         Context context = getContext();
 
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
@@ -114,33 +274,243 @@ public class StashMediaPlugin extends Plugin {
         stashMedia.saveVideo(
             context,
             url,
-            new StashMedia.StashMediaCallback() {
+            id,
+            dedupe,
+            sha256,
+            (bytes, totalBytes, bytesPerSecond) -> {
+                JSObject progress = new JSObject();
+                progress.put("url", url);
+                if (id != null) {
+                    progress.put("id", id);
+                }
+                progress.put("bytes", bytes);
+                progress.put("totalBytes", totalBytes);
+                progress.put("bytesPerSecond", bytesPerSecond);
+                if (totalBytes > 0 && bytesPerSecond > 0) {
+                    progress.put("etaMs", ((totalBytes - bytes) * 1000) / bytesPerSecond);
+                }
+                notifyListeners("progress", progress);
+            },
+            new StashMedia.SaveCallback() {
                 @Override
-                public void onSuccess() {
-                    call.resolve();
+                public void onSaved(Uri uri, boolean existing) {
+                    call.resolve(saveResult(uri, existing));
                 }
 
                 @Override
-                public void onError(String errorMessage) {
-                    call.reject(errorMessage);
+                public void onError(String errorMessage, String code) {
+                    call.reject(errorMessage, code);
                 }
             }
         );
     }
 
+    @PluginMethod
+    public void saveMediaBatch(PluginCall call) {
+        JSArray itemsArray = call.getArray("items");
+        // Unset lets the transfer controller learn what each host sustains
+        int concurrency = call.getInt("concurrency", 0);
+        Context context = getContext();
+
+        if (itemsArray == null) {
+            call.reject("items parameter is missing", "INVALID_PARAMETERS");
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
+            // Check if permission is not granted
+            if (
+                ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED
+            ) {
+                // Request permission
+                ActivityCompat.requestPermissions(getActivity(), new String[] { Manifest.permission.WRITE_EXTERNAL_STORAGE }, 9004);
+
+                call.reject("Permissions requested");
+
+                return;
+            }
+        }
+
+        List<MediaBatch.Item> items = new ArrayList<>();
+        for (int i = 0; i < itemsArray.length(); i++) {
+            JSONObject item = itemsArray.optJSONObject(i);
+            if (item == null) {
+                call.reject("items[" + i + "] must be an object", "INVALID_PARAMETERS");
+                return;
+            }
+            items.add(new MediaBatch.Item(i, item.optString("url", null), item.optString("kind", MediaBatch.KIND_PHOTO)));
+        }
+
+        stashMedia.saveMediaBatch(context, items, concurrency, (results, elapsedMillis) -> {
+            JSArray resultsArray = new JSArray();
+            long totalBytes = 0;
+            int succeeded = 0;
+
+            for (MediaBatch.Item item : results) {
+                JSObject result = new JSObject();
+                result.put("url", item.url);
+                result.put("kind", item.kind);
+                result.put("success", item.uri != null);
+                result.put("bytes", item.bytes);
+                if (item.uri != null) {
+                    result.put("uri", item.uri.toString());
+                    succeeded++;
+                } else {
+                    result.put("error", item.error);
+                }
+                resultsArray.put(result);
+                totalBytes += item.bytes;
+            }
+
+            JSObject ret = new JSObject();
+            ret.put("results", resultsArray);
+            ret.put("succeeded", succeeded);
+            ret.put("failed", results.size() - succeeded);
+            ret.put("totalBytes", totalBytes);
+            ret.put("elapsedMs", elapsedMillis);
+            ret.put("bytesPerSecond", elapsedMillis > 0 ? totalBytes * 1000 / elapsedMillis : 0);
+            call.resolve(ret);
+        });
+    }
+
+    @PluginMethod
+    public void getThumbnail(PluginCall call) {
+        String url = call.getString("url");
+        int maxSize = call.getInt("maxSize", Thumbnails.DEFAULT_MAX_SIZE);
+        String output = call.getString("output", "dataUrl");
+
+        if (url == null) {
+            call.reject("url parameter is missing", "INVALID_PARAMETERS");
+            return;
+        }
+        if (maxSize <= 0) {
+            call.reject("maxSize must be greater than 0", "INVALID_PARAMETERS");
+            return;
+        }
+        if (!"dataUrl".equals(output) && !"file".equals(output)) {
+            call.reject("Unsupported output: " + output, "INVALID_PARAMETERS");
+            return;
+        }
+
+        stashMedia.getThumbnail(
+            url,
+            maxSize,
+            "file".equals(output),
+            new Thumbnails.ThumbnailCallback() {
+                @Override
+                public void onThumbnail(Thumbnails.Thumbnail thumbnail) {
+                    JSObject ret = new JSObject();
+                    ret.put("width", thumbnail.width);
+                    ret.put("height", thumbnail.height);
+                    if (thumbnail.file != null) {
+                        ret.put("uri", Uri.fromFile(thumbnail.file).toString());
+                    } else {
+                        ret.put("dataUrl", thumbnail.dataUrl);
+                    }
+                    call.resolve(ret);
+                }
+
+                @Override
+                public void onError(String errorMessage, String code) {
+                    call.reject(errorMessage, code);
+                }
+            }
+        );
+    }
+
+    @PluginMethod
+    public void enqueue(PluginCall call) {
+        String url = call.getString("url");
+        String kind = call.getString("kind", MediaBatch.KIND_PHOTO);
+        String priority = call.getString("priority", MediaQueue.PRIORITY_INTERACTIVE);
+        Context context = getContext();
+
+        if (url == null) {
+            call.reject("url parameter is missing", "INVALID_PARAMETERS");
+            return;
+        }
+        if (!MediaBatch.KIND_PHOTO.equals(kind) && !MediaBatch.KIND_VIDEO.equals(kind)) {
+            call.reject("Unsupported kind: " + kind, "INVALID_PARAMETERS");
+            return;
+        }
+        if (!MediaQueue.PRIORITY_INTERACTIVE.equals(priority) && !MediaQueue.PRIORITY_BULK.equals(priority)) {
+            call.reject("Unsupported priority: " + priority, "INVALID_PARAMETERS");
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
+            // Check if permission is not granted
+            if (
+                ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED
+            ) {
+                // Request permission
+                ActivityCompat.requestPermissions(getActivity(), new String[] { Manifest.permission.WRITE_EXTERNAL_STORAGE }, 9005);
+
+                call.reject("Permissions requested");
+
+                return;
+            }
+        }
+
+        String id = queue.enqueue(
+            new MediaQueue.Job(
+                url,
+                kind,
+                priority,
+                call.getBoolean("requiresUnmetered", false),
+                call.getBoolean("requiresCharging", false),
+                call.getBoolean("dedupe", false),
+                call.getString("sha256")
+            )
+        );
+
+        JSObject ret = new JSObject();
+        ret.put("id", id);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void getQueue(PluginCall call) {
+        List<WorkInfo> infos;
+        try {
+            infos = queue.jobs();
+        } catch (ExecutionException | InterruptedException e) {
+            call.reject("Failed to read the queue: " + e.getMessage());
+            return;
+        }
+
+        JSArray jobs = new JSArray();
+        for (WorkInfo info : infos) {
+            jobs.put(MediaQueue.describe(info));
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("jobs", jobs);
+        call.resolve(ret);
+    }
+
     @PluginMethod
     public void shareImage(PluginCall call) {
         String imageUrl = call.getString("url");
         String title = call.getString("title");
 
+        ImageTranscoder.Options transcode;
+        try {
+            transcode = transcodeOptions(call);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage(), "INVALID_PARAMETERS");
+            return;
+        }
+
         if (imageUrl != null && title != null) {
             stashMedia.downloadAndSaveImageForSharing(
                 getContext(),
                 imageUrl,
                 title,
+                transcode,
                 new StashMedia.ImageDownloadListener() {
                     @Override
-                    public void onImageDownloaded(Uri imageUri) {
+                    public void onImageDownloaded(Uri imageUri, File stagedFile) {
                         Intent shareIntent = new Intent(Intent.ACTION_SEND);
                         shareIntent.setType("image/*");
                         shareIntent.putExtra(Intent.EXTRA_STREAM, imageUri);
@@ -148,19 +518,177 @@ public class StashMediaPlugin extends Plugin {
                         shareIntent.setClipData(ClipData.newRawUri("", imageUri));
 
                         Intent chooserIntent = Intent.createChooser(shareIntent, "Share Image");
-                        getActivity().startActivity(chooserIntent);
-
-                        call.resolve();
+                        share(call, chooserIntent, Collections.singletonList(stagedFile), new JSObject());
                     }
 
                     @Override
-                    public void onImageDownloadFailed() {
-                        call.reject("DOWNLOAD_FAILED", "Failed to download and save the image");
+                    public void onImageDownloadFailed(String errorMessage, String code) {
+                        call.reject(errorMessage, code != null ? code : "DOWNLOAD_FAILED");
                     }
                 }
             );
         } else {
-            call.reject("INVALID_PARAMETERS", "URL or title parameter is missing");
+            call.reject("URL or title parameter is missing", "INVALID_PARAMETERS");
+        }
+    }
+
+    @PluginMethod
+    public void shareImages(PluginCall call) {
+        JSArray itemsArray = call.getArray("items");
+        int concurrency = call.getInt("concurrency", 3);
+        boolean failFast = call.getBoolean("failFast", false);
+
+        if (itemsArray == null || itemsArray.length() == 0) {
+            call.reject("items parameter is missing", "INVALID_PARAMETERS");
+            return;
+        }
+
+        ImageTranscoder.Options transcode;
+        try {
+            transcode = transcodeOptions(call);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage(), "INVALID_PARAMETERS");
+            return;
+        }
+
+        List<ShareBatch.Item> items = new ArrayList<>();
+        for (int i = 0; i < itemsArray.length(); i++) {
+            JSONObject item = itemsArray.optJSONObject(i);
+            if (item == null) {
+                call.reject("items[" + i + "] must be an object", "INVALID_PARAMETERS");
+                return;
+            }
+            items.add(new ShareBatch.Item(i, item.optString("url", null), item.optString("title", null)));
         }
+
+        stashMedia.shareImages(
+            getContext(),
+            items,
+            concurrency,
+            failFast,
+            transcode,
+            new ShareBatch.ShareCallback() {
+                @Override
+                public void onStaged(List<ShareBatch.Item> results) {
+                    ArrayList<Uri> uris = new ArrayList<>();
+                    List<File> stagedFiles = new ArrayList<>();
+                    JSArray resultsArray = new JSArray();
+
+                    for (ShareBatch.Item item : results) {
+                        JSObject result = new JSObject();
+                        result.put("url", item.url);
+                        result.put("success", item.uri != null);
+                        if (item.uri != null) {
+                            uris.add(item.uri);
+                            stagedFiles.add(item.stagedFile);
+                        } else {
+                            result.put("error", item.error);
+                        }
+                        resultsArray.put(result);
+                    }
+
+                    if (uris.isEmpty()) {
+                        call.reject("Failed to download and save the images", "DOWNLOAD_FAILED");
+                        return;
+                    }
+
+                    Intent shareIntent = new Intent(Intent.ACTION_SEND_MULTIPLE);
+                    shareIntent.setType("image/*");
+                    shareIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+                    shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+                    // Read permission is granted through the ClipData, so it has to list every URI
+                    ClipData clipData = ClipData.newRawUri("", uris.get(0));
+                    for (int i = 1; i < uris.size(); i++) {
+                        clipData.addItem(new ClipData.Item(uris.get(i)));
+                    }
+                    shareIntent.setClipData(clipData);
+
+                    Intent chooserIntent = Intent.createChooser(shareIntent, "Share Images");
+
+                    JSObject ret = new JSObject();
+                    ret.put("results", resultsArray);
+                    ret.put("shared", uris.size());
+                    ret.put("failed", results.size() - uris.size());
+
+                    share(call, chooserIntent, stagedFiles, ret);
+                }
+
+                @Override
+                public void onFailed(String errorMessage) {
+                    call.reject(errorMessage, "DOWNLOAD_FAILED");
+                }
+            }
+        );
+    }
+
+    /**
+     * Opens the share sheet and releases the staged files once it returns. Each share registers its
+     * own result callback rather than going through the saved call, so overlapping shares each
+     * release their own files. Files of a share whose activity is recreated are left to the share
+     * cache's age limit.
+     */
+    private void share(PluginCall call, Intent chooserIntent, List<File> stagedFiles, JSObject ret) {
+        getActivity()
+            .runOnUiThread(() -> {
+                AtomicReference<ActivityResultLauncher<Intent>> launcher = new AtomicReference<>();
+                launcher.set(
+                    getActivity()
+                        .getActivityResultRegistry()
+                        .register("stash-media-share-" + UUID.randomUUID(), new ActivityResultContracts.StartActivityForResult(), result -> {
+                            launcher.get().unregister();
+                            releaseSharedFiles(stagedFiles);
+                        })
+                );
+
+                try {
+                    launcher.get().launch(chooserIntent);
+                } catch (RuntimeException e) {
+                    // Such as an ActivityNotFoundException; no result will ever come back for it
+                    launcher.get().unregister();
+                    releaseSharedFiles(stagedFiles);
+                    call.reject("Failed to open the share sheet: " + e.getMessage());
+                    return;
+                }
+                call.resolve(ret);
+            });
+    }
+
+    private void releaseSharedFiles(List<File> stagedFiles) {
+        for (File stagedFile : stagedFiles) {
+            stashMedia.releaseSharedFile(stagedFile);
+        }
+    }
+
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        call.resolve(stashMedia.getMetrics());
+    }
+
+    @PluginMethod
+    public void resetMetrics(PluginCall call) {
+        stashMedia.resetMetrics();
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getResourceUsage(PluginCall call) {
+        call.resolve(stashMedia.getResourceUsage());
+    }
+
+    @PluginMethod
+    public void getCacheStats(PluginCall call) {
+        call.resolve(stashMedia.getCacheStats());
+    }
+
+    private ImageTranscoder.Options transcodeOptions(PluginCall call) {
+        return ImageTranscoder.Options.from(call.getInt("maxDimension"), call.getString("format"), call.getInt("quality"));
+    }
+
+    private JSObject saveResult(Uri uri, boolean existing) {
+        JSObject ret = new JSObject();
+        ret.put("uri", uri.toString());
+        ret.put("existing", existing);
+        return ret;
     }
 }
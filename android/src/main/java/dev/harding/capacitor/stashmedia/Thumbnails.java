@@ -0,0 +1,183 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import okio.Okio;
+
+/**
+ * Small previews of images, for showing before the user commits to a save or share.
+ *
+ * Previews are decoded at a power-of-two sample size, so only a fraction of the full image is ever
+ * in memory, and the decoded bitmaps are kept in an LRU cache sized in bytes. The download goes
+ * through the media cache like every other fetch, so saving or sharing the image afterwards
+ * revalidates instead of downloading it again.
+ */
+class Thumbnails {
+
+    static final int DEFAULT_MAX_SIZE = 256;
+    static final long DEFAULT_CACHE_SIZE = Math.min(16L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+
+    private static final int QUALITY = 80;
+
+    static final class Thumbnail {
+
+        final int width;
+        final int height;
+        // Exactly one of these is set
+        final String dataUrl;
+        final File file;
+
+        Thumbnail(int width, int height, String dataUrl, File file) {
+            this.width = width;
+            this.height = height;
+            this.dataUrl = dataUrl;
+            this.file = file;
+        }
+    }
+
+    interface ThumbnailCallback {
+        void onThumbnail(Thumbnail thumbnail);
+
+        /**
+         * @param code see {@link StashMediaException}, or null
+         */
+        void onError(String errorMessage, String code);
+    }
+
+    private final StashMedia stashMedia;
+    private final File directory;
+    private final Executor executor;
+    private final LruCache<String, Bitmap> bitmaps;
+
+    Thumbnails(StashMedia stashMedia, File directory, long cacheSize, Executor executor) {
+        this.stashMedia = stashMedia;
+        this.directory = directory;
+        this.executor = executor;
+        this.bitmaps = new LruCache<String, Bitmap>((int) Math.min(Integer.MAX_VALUE, Math.max(1, cacheSize))) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                // Never recycled: a caller may still be encoding it
+                fileFor(key).delete();
+            }
+        };
+
+        // Files are only valid while their bitmap is cached, so anything on disk is left over
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param maxSize longest edge in pixels
+     * @param asFile write the preview to a file instead of returning it as a data URL
+     */
+    void get(String url, int maxSize, boolean asFile, ThumbnailCallback callback) {
+        String key = url + " " + maxSize;
+        Bitmap cached = bitmaps.get(key);
+        if (cached != null) {
+            executor.execute(() -> deliver(key, cached, asFile, callback));
+            return;
+        }
+
+        stashMedia.fetch(
+            url,
+            new StashMedia.MediaCallback() {
+                @Override
+                public void onResponse(MediaResponse media) {
+                    Bitmap bitmap;
+                    try {
+                        ResourceGovernor.Lease lease = stashMedia
+                            .governor()
+                            .acquire(ImageTranscoder.decodeToFitCost(media.source(), maxSize), false);
+                        try {
+                            bitmap = ImageTranscoder.decodeToFit(media.source(), maxSize, stashMedia.metrics());
+                        } finally {
+                            lease.close();
+                        }
+                    } catch (IOException e) {
+                        Log.e("StashMedia", "Failed to create thumbnail: " + e.getMessage());
+                        callback.onError("Failed to create thumbnail: " + e.getMessage(), StashMediaException.code(e));
+                        return;
+                    }
+
+                    if (!media.isFromCache()) {
+                        try {
+                            // The decoder may stop short of the end, and the cache only keeps bodies read to EOF
+                            media.source().readAll(Okio.blackhole());
+                        } catch (IOException e) {
+                            Log.e("StashMedia", "Failed to cache image: " + e.getMessage());
+                        }
+                    }
+
+                    bitmaps.put(key, bitmap);
+                    deliver(key, bitmap, asFile, callback);
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    Log.e("StashMedia", "Failed to fetch image data: " + e.getMessage());
+                    callback.onError("Failed to fetch image data: " + e.getMessage(), null);
+                }
+            }
+        );
+    }
+
+    private void deliver(String key, Bitmap bitmap, boolean asFile, ThumbnailCallback callback) {
+        try {
+            Thumbnail thumbnail;
+            if (asFile) {
+                File file = fileFor(key);
+                if (!file.exists()) {
+                    directory.mkdirs();
+                    // Unique, in case the same preview is requested twice at once
+                    File tmp = File.createTempFile("thumbnail", ".tmp", directory);
+                    try (OutputStream out = new FileOutputStream(tmp)) {
+                        encode(bitmap, out);
+                    }
+                    if (!tmp.renameTo(file)) {
+                        tmp.delete();
+                        throw new IOException("Failed to move thumbnail into place");
+                    }
+                }
+                thumbnail = new Thumbnail(bitmap.getWidth(), bitmap.getHeight(), null, file);
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                encode(bitmap, out);
+                String dataUrl = "data:image/webp;base64," + Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP);
+                thumbnail = new Thumbnail(bitmap.getWidth(), bitmap.getHeight(), dataUrl, null);
+            }
+            callback.onThumbnail(thumbnail);
+        } catch (IOException e) {
+            Log.e("StashMedia", "Failed to encode thumbnail: " + e.getMessage());
+            callback.onError("Failed to encode thumbnail: " + e.getMessage(), null);
+        }
+    }
+
+    private void encode(Bitmap bitmap, OutputStream out) throws IOException {
+        long encodeStart = Metrics.start();
+        if (!bitmap.compress(ImageTranscoder.compressFormat("image/webp"), QUALITY, out)) {
+            throw new IOException("Failed to encode thumbnail as image/webp");
+        }
+        stashMedia.metrics().recordSince(Metrics.IMAGE_ENCODE, encodeStart);
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, MediaCache.sha256(key) + ".webp");
+    }
+}
@@ -0,0 +1,201 @@
+package dev.harding.capacitor.stashmedia;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Moves bytes from a response body (or a staged file) to their destination. Data travels in Okio's
+ * pooled 8 KiB segments, which are handed to the destination without being copied into an
+ * intermediate array first.
+ */
+final class Transfer {
+
+    /**
+     * Bounds on bytes moved between progress callbacks, see {@link ChunkSizer}.
+     */
+    static final long MIN_CHUNK_SIZE = 16 * 1024;
+    static final long MAX_CHUNK_SIZE = 512 * 1024;
+
+    interface ProgressListener {
+        void onBytes(long totalBytes);
+    }
+
+    static final class Stats {
+
+        final long bytes;
+        final long elapsedNanos;
+
+        Stats(long bytes, long elapsedNanos) {
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        long elapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        long bytesPerSecond() {
+            return elapsedNanos > 0 ? (long) (bytes * 1_000_000_000.0 / elapsedNanos) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d bytes in %d ms (%.2f MB/s)", bytes, elapsedMillis(), bytesPerSecond() / (1024.0 * 1024.0));
+        }
+    }
+
+    /**
+     * Sizes the chunks of a copy so that each takes about {@link TransferProfile#chunkTargetMillis}:
+     * a thumbnail on cellular reports progress in small steps, a video on Wi-Fi in large ones with
+     * far fewer writes and callbacks. The first chunk is sized from the Content-Length, later ones
+     * from the throughput measured so far. Sizes are powers of two, so small swings in throughput
+     * do not change them.
+     */
+    static final class ChunkSizer {
+
+        // Weight of the newest chunk in the throughput estimate
+        private static final double ALPHA = 0.3;
+        private static final long INITIAL_MAX_CHUNK_SIZE = 128 * 1024;
+
+        private final String host;
+        private final int targetMillis;
+        private final TransferProfile.Observer observer;
+        private long size;
+        private double bytesPerSecond;
+
+        /**
+         * @param contentLength -1 if unknown
+         * @param host reported with decisions, may be null
+         * @param observer notified when the size changes, may be null
+         */
+        ChunkSizer(TransferProfile profile, long contentLength, String host, TransferProfile.Observer observer) {
+            this.host = host;
+            this.targetMillis = profile.chunkTargetMillis;
+            this.observer = observer;
+            // Aim for a few dozen progress updates over the whole body, but start modestly since
+            // nothing is known about the link yet
+            this.size = contentLength > 0 ? clamp(Math.min(contentLength / 32, INITIAL_MAX_CHUNK_SIZE)) : MIN_CHUNK_SIZE;
+        }
+
+        long size() {
+            return size;
+        }
+
+        void onChunk(long bytes, long elapsedNanos) {
+            if (elapsedNanos <= 0) {
+                return;
+            }
+            double rate = bytes * 1_000_000_000.0 / elapsedNanos;
+            bytesPerSecond = bytesPerSecond == 0 ? rate : ALPHA * rate + (1 - ALPHA) * bytesPerSecond;
+
+            long previous = size;
+            size = clamp((long) (bytesPerSecond * targetMillis / 1000));
+            if (size != previous && observer != null) {
+                observer.onDecision(
+                    new TransferProfile.Decision(TransferProfile.CHUNK_SIZE, host, previous, size, (long) bytesPerSecond, -1, "throughput")
+                );
+            }
+        }
+
+        private static long clamp(long bytes) {
+            return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, Long.highestOneBit(Math.max(1, bytes))));
+        }
+    }
+
+    private Transfer() {}
+
+    static Stats copy(BufferedSource source, Sink sink) throws IOException {
+        return copy(source, sink, null, null);
+    }
+
+    /**
+     * Copies until the source is exhausted, then flushes the sink. Neither side is closed.
+     *
+     * @param chunks required when there is a listener
+     */
+    static Stats copy(BufferedSource source, Sink sink, ChunkSizer chunks, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        long total;
+
+        if (listener == null) {
+            total = source.readAll(sink);
+        } else {
+            total = 0;
+            Buffer buffer = new Buffer();
+            while (true) {
+                long chunkStart = System.nanoTime();
+                long chunkSize = chunks.size();
+                // A read returns at most one segment, so wait for the whole chunk to be buffered;
+                // its segments then move to the sink without being copied
+                source.request(chunkSize);
+                long read = source.read(buffer, chunkSize);
+                if (read == -1) {
+                    break;
+                }
+                sink.write(buffer, read);
+                total += read;
+                listener.onBytes(total);
+                chunks.onChunk(read, System.nanoTime() - chunkStart);
+            }
+        }
+        sink.flush();
+
+        return new Stats(total, System.nanoTime() - start);
+    }
+
+    static Stats copy(BufferedSource source, File file, boolean append, ChunkSizer chunks, ProgressListener listener)
+        throws IOException {
+        try (Sink sink = Okio.sink(new FileOutputStream(file, append))) {
+            return copy(source, sink, chunks, listener);
+        }
+    }
+
+    static Stats copy(BufferedSource source, File file) throws IOException {
+        return copy(source, file, false, null, null);
+    }
+
+    /**
+     * Writes to the file descriptor behind a MediaStore URI.
+     */
+    static Stats copy(BufferedSource source, ContentResolver resolver, Uri uri) throws IOException {
+        try (Sink sink = sink(resolver, uri)) {
+            return copy(source, sink);
+        }
+    }
+
+    /**
+     * Opens the file descriptor behind a MediaStore URI for writing. Closing the sink closes the
+     * descriptor.
+     */
+    static Sink sink(ContentResolver resolver, Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "w");
+        if (descriptor == null) {
+            throw new IOException("Output stream is null");
+        }
+
+        FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor);
+        try {
+            // Truncate in case the row already had content
+            outputStream.getChannel().truncate(0);
+        } catch (IOException e) {
+            outputStream.close();
+            throw e;
+        }
+        return Okio.sink(outputStream);
+    }
+
+    static Stats copy(File file, ContentResolver resolver, Uri uri) throws IOException {
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            return copy(source, resolver, uri);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package dev.harding.capacitor.stashmedia;
+
+/**
+ * Tunables of the adaptive transfer controller: how large copy chunks grow, see
+ * {@link Transfer.ChunkSizer}, and how many batch downloads run at once per host, see
+ * {@link HostConcurrency}. Read from {@code capacitor.config} by {@link StashMediaConfig}.
+ */
+class TransferProfile {
+
+    static final String CONCURRENCY = "concurrency";
+    static final String CHUNK_SIZE = "chunkSize";
+
+    static final int DEFAULT_INITIAL_CONCURRENCY = 3;
+    // OkHttp's own per-host limit, which caps this anyway unless maxRequestsPerHost is raised
+    static final int DEFAULT_MAX_CONCURRENCY = 5;
+    static final int DEFAULT_CHUNK_TARGET_MILLIS = 250;
+
+    boolean adaptiveConcurrency = true;
+    int initialConcurrency = DEFAULT_INITIAL_CONCURRENCY;
+    int maxConcurrencyPerHost = DEFAULT_MAX_CONCURRENCY;
+    /**
+     * How long a chunk should take to arrive. Shorter means smoother progress, longer means fewer
+     * writes and callbacks.
+     */
+    int chunkTargetMillis = DEFAULT_CHUNK_TARGET_MILLIS;
+
+    interface Observer {
+        /**
+         * Called on the transfer thread whenever the controller changes a setting.
+         */
+        void onDecision(Decision decision);
+    }
+
+    static final class Decision {
+
+        /**
+         * {@link #CONCURRENCY} or {@link #CHUNK_SIZE}
+         */
+        final String kind;
+        final String host;
+        final long previous;
+        final long value;
+        final long bytesPerSecond;
+        /**
+         * Share of failed downloads in the window, or -1 for chunk sizes
+         */
+        final double errorRate;
+        final String reason;
+
+        Decision(String kind, String host, long previous, long value, long bytesPerSecond, double errorRate, String reason) {
+            this.kind = kind;
+            this.host = host;
+            this.previous = previous;
+            this.value = value;
+            this.bytesPerSecond = bytesPerSecond;
+            this.errorRate = errorRate;
+            this.reason = reason;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package dev.harding.capacitor.stashmedia;
+
+import java.io.IOException;
+import java.util.Locale;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.HashingSource;
+import okio.Source;
+
+/**
+ * Counts (and, when a digest is expected, hashes) the bytes read through it, so a body can be
+ * checked against its Content-Length and an expected SHA-256 once it has been fully read.
+ */
+final class VerifyingSource extends ForwardingSource {
+
+    private final long expectedLength;
+    private final String expectedSha256;
+    private final HashingSource hashing;
+    private long bytes;
+
+    private VerifyingSource(Source delegate, HashingSource hashing, long expectedLength, String expectedSha256) {
+        super(delegate);
+        this.hashing = hashing;
+        this.expectedLength = expectedLength;
+        this.expectedSha256 = expectedSha256;
+    }
+
+    /**
+     * @param expectedLength -1 if unknown
+     * @param expectedSha256 hex digest, or null to skip hashing
+     */
+    static VerifyingSource wrap(Source source, long expectedLength, String expectedSha256) {
+        HashingSource hashing = expectedSha256 != null ? HashingSource.sha256(source) : null;
+        return new VerifyingSource(hashing != null ? hashing : source, hashing, expectedLength, expectedSha256);
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+        long read = super.read(sink, byteCount);
+        if (read != -1) {
+            bytes += read;
+        }
+        return read;
+    }
+
+    /**
+     * To be called once the source is exhausted.
+     */
+    void verify() throws StashMediaException {
+        checkLength(expectedLength, bytes);
+        if (hashing != null) {
+            checkSha256(expectedSha256, hashing.hash().hex());
+        }
+    }
+
+    static void checkLength(long expected, long actual) throws StashMediaException {
+        if (expected != -1 && expected != actual) {
+            throw new StashMediaException(StashMediaException.VERIFICATION_FAILED, "Expected " + expected + " bytes but got " + actual);
+        }
+    }
+
+    /**
+     * @param expected hex digest, or null to skip the check
+     */
+    static void checkSha256(String expected, String actual) throws StashMediaException {
+        if (expected != null && !expected.toLowerCase(Locale.US).equals(actual)) {
+            throw new StashMediaException(StashMediaException.VERIFICATION_FAILED, "SHA-256 mismatch: expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ChunkSizerTest {
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void firstChunkIsSizedFromTheContentLength() {
+        assertEquals(Transfer.MIN_CHUNK_SIZE, sizer(-1).size());
+        assertEquals(Transfer.MIN_CHUNK_SIZE, sizer(100 * KB).size());
+        assertEquals(64 * KB, sizer(2 * MB).size());
+        // Capped until the link has been measured
+        assertEquals(128 * KB, sizer(500 * MB).size());
+    }
+
+    @Test
+    public void sizesArePowersOfTwoWithinBounds() {
+        Transfer.ChunkSizer chunks = sizer(-1);
+        long[] bytesPerSecond = { 1, 10 * KB, 100 * KB, 300 * KB, MB, 3 * MB, 100 * MB };
+        for (long rate : bytesPerSecond) {
+            for (int i = 0; i < 20; i++) {
+                chunks.onChunk(rate, SECOND);
+            }
+            long size = chunks.size();
+            assertTrue(size >= Transfer.MIN_CHUNK_SIZE && size <= Transfer.MAX_CHUNK_SIZE);
+            assertEquals(size, Long.highestOneBit(size));
+        }
+    }
+
+    @Test
+    public void settlesOnTheTargetDuration() {
+        // 250ms of 1.5MB/s is 384KB, rounded down to a power of two
+        Transfer.ChunkSizer chunks = sizer(-1);
+        for (int i = 0; i < 30; i++) {
+            chunks.onChunk(150 * KB, SECOND / 10);
+        }
+        assertEquals(256 * KB, chunks.size());
+    }
+
+    @Test
+    public void clampsToTheBounds() {
+        Transfer.ChunkSizer fast = sizer(-1);
+        fast.onChunk(MB, SECOND / 1000);
+        assertEquals(Transfer.MAX_CHUNK_SIZE, fast.size());
+
+        Transfer.ChunkSizer slow = sizer(500 * MB);
+        slow.onChunk(KB, SECOND);
+        assertEquals(Transfer.MIN_CHUNK_SIZE, slow.size());
+    }
+
+    @Test
+    public void smoothsOutASingleStall() {
+        Transfer.ChunkSizer chunks = sizer(-1);
+        for (int i = 0; i < 30; i++) {
+            chunks.onChunk(1536 * KB, SECOND);
+        }
+        long settled = chunks.size();
+        // Half the throughput for one chunk moves the estimate by 15%, not enough to halve the size
+        chunks.onChunk(1536 * KB, 2 * SECOND);
+        assertEquals(settled, chunks.size());
+    }
+
+    @Test
+    public void ignoresChunksWithoutElapsedTime() {
+        Transfer.ChunkSizer chunks = sizer(2 * MB);
+        chunks.onChunk(MB, 0);
+        assertEquals(64 * KB, chunks.size());
+    }
+
+    @Test
+    public void reportsOnlyChanges() {
+        List<TransferProfile.Decision> decisions = new ArrayList<>();
+        Transfer.ChunkSizer chunks = new Transfer.ChunkSizer(new TransferProfile(), -1, "cdn.example.com", decisions::add);
+
+        chunks.onChunk(KB, SECOND);
+        assertTrue(decisions.isEmpty());
+
+        chunks.onChunk(MB, SECOND / 1000);
+        assertEquals(1, decisions.size());
+        TransferProfile.Decision decision = decisions.get(0);
+        assertEquals(TransferProfile.CHUNK_SIZE, decision.kind);
+        assertEquals("cdn.example.com", decision.host);
+        assertEquals(Transfer.MIN_CHUNK_SIZE, decision.previous);
+        assertEquals(chunks.size(), decision.value);
+    }
+
+    private static Transfer.ChunkSizer sizer(long contentLength) {
+        return new Transfer.ChunkSizer(new TransferProfile(), contentLength, null, null);
+    }
+}
@@ -0,0 +1,132 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class HostConcurrencyTest {
+
+    private static final String HOST = "cdn.example.com";
+
+    private final List<TransferProfile.Decision> decisions = new ArrayList<>();
+
+    @Test
+    public void startsAtTheInitialLimitCappedByTheDispatcher() {
+        assertEquals(3, new HostConcurrency(new TransferProfile(), 64, null).limit(HOST));
+        assertEquals(2, new HostConcurrency(new TransferProfile(), 2, null).limit(HOST));
+
+        TransferProfile profile = new TransferProfile();
+        profile.initialConcurrency = 0;
+        assertEquals(1, new HostConcurrency(profile, 64, null).limit(HOST));
+    }
+
+    @Test
+    public void growsByOnePerCleanWindow() {
+        HostConcurrency concurrency = new HostConcurrency(new TransferProfile(), 64, decisions::add);
+
+        // No bytes means no throughput to lose, so only errors could hold the limit back
+        completeWindow(concurrency, 0, 0);
+        assertEquals(4, concurrency.limit(HOST));
+        completeWindow(concurrency, 0, 0);
+        assertEquals(5, concurrency.limit(HOST));
+
+        assertEquals(2, decisions.size());
+        TransferProfile.Decision decision = decisions.get(1);
+        assertEquals(TransferProfile.CONCURRENCY, decision.kind);
+        assertEquals(HOST, decision.host);
+        assertEquals(4, decision.previous);
+        assertEquals(5, decision.value);
+    }
+
+    @Test
+    public void neverExceedsTheCeiling() {
+        TransferProfile profile = new TransferProfile();
+        profile.maxConcurrencyPerHost = 8;
+        HostConcurrency concurrency = new HostConcurrency(profile, 6, decisions::add);
+
+        for (int window = 0; window < 10; window++) {
+            completeWindow(concurrency, 0, 0);
+        }
+        assertEquals(6, concurrency.limit(HOST));
+        // Only changes are reported
+        assertEquals(3, decisions.size());
+    }
+
+    @Test
+    public void halvesWhenTooManyDownloadsFail() {
+        TransferProfile profile = new TransferProfile();
+        profile.initialConcurrency = 4;
+        HostConcurrency concurrency = new HostConcurrency(profile, 64, decisions::add);
+
+        completeWindow(concurrency, 0, 1);
+        assertEquals(2, concurrency.limit(HOST));
+        assertEquals("errors", decisions.get(0).reason);
+        assertEquals(0.25, decisions.get(0).errorRate, 0);
+    }
+
+    @Test
+    public void toleratesAnOccasionalFailure() {
+        TransferProfile profile = new TransferProfile();
+        profile.initialConcurrency = 5;
+        profile.maxConcurrencyPerHost = 10;
+        HostConcurrency concurrency = new HostConcurrency(profile, 64, null);
+
+        completeWindow(concurrency, 0, 1);
+        assertEquals(6, concurrency.limit(HOST));
+    }
+
+    @Test
+    public void neverDropsBelowOne() {
+        TransferProfile profile = new TransferProfile();
+        profile.initialConcurrency = 2;
+        HostConcurrency concurrency = new HostConcurrency(profile, 64, decisions::add);
+
+        completeWindow(concurrency, 0, 2);
+        assertEquals(1, concurrency.limit(HOST));
+        completeWindow(concurrency, 0, 2);
+        assertEquals(1, concurrency.limit(HOST));
+        assertEquals(1, decisions.size());
+    }
+
+    @Test
+    public void backsOffWhenAnIncreaseCostThroughput() {
+        HostConcurrency concurrency = new HostConcurrency(new TransferProfile(), 64, decisions::add);
+
+        completeWindow(concurrency, 1_000_000_000L, 0);
+        assertEquals(4, concurrency.limit(HOST));
+        completeWindow(concurrency, 0, 0);
+        assertEquals(2, concurrency.limit(HOST));
+        assertEquals("throughput dropped", decisions.get(1).reason);
+
+        // The cut was not an increase, so a slower window after it is no reason to cut again
+        completeWindow(concurrency, 0, 0);
+        assertEquals(3, concurrency.limit(HOST));
+    }
+
+    @Test
+    public void learnsEachHostSeparately() {
+        HostConcurrency concurrency = new HostConcurrency(new TransferProfile(), 64, null);
+
+        completeWindow(concurrency, 0, 3);
+        assertEquals(1, concurrency.limit(HOST));
+        assertEquals(3, concurrency.limit("other.example.com"));
+    }
+
+    /**
+     * Runs one window's worth of downloads for {@link #HOST} at its current limit.
+     *
+     * @param bytes spread over the successful downloads
+     */
+    private static void completeWindow(HostConcurrency concurrency, long bytes, int failures) {
+        int downloads = Math.max(2, concurrency.limit(HOST));
+        for (int i = 0; i < downloads; i++) {
+            concurrency.onStart(HOST);
+        }
+        for (int i = 0; i < downloads; i++) {
+            boolean failed = i < failures;
+            concurrency.onComplete(HOST, failed ? 0 : bytes / (downloads - failures), failed);
+        }
+    }
+}
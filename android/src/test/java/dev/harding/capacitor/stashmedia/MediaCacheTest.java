@@ -0,0 +1,164 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MediaCacheTest {
+
+    private static final long MAX_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(cache, "a", 250);
+        put(cache, "b", 250);
+        put(cache, "c", 250);
+        put(cache, "d", 250);
+        cache.recordHit(cache.get("a"));
+
+        put(cache, "e", 250);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("e"));
+        MediaCache.Stats stats = cache.stats();
+        assertEquals(1, stats.evictions);
+        assertEquals(4, stats.entryCount);
+        assertEquals(MAX_SIZE, stats.size);
+        assertEquals(5, temp.getRoot().list().length);
+    }
+
+    @Test
+    public void indexSurvivesReopening() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(cache, "https://example.com/a.jpg", 100);
+        MediaCache.Editor editor = cache.edit("https://example.com/b.png", null, "Wed, 21 Oct 2015 07:28:00 GMT", null, null, -1);
+        write(editor, 200);
+
+        MediaCache reopened = new MediaCache(temp.getRoot(), MAX_SIZE);
+
+        MediaCache.Entry a = reopened.get("https://example.com/a.jpg");
+        assertEquals("\"https://example.com/a.jpg\"", a.etag);
+        assertNull(a.lastModified);
+        assertEquals("image/jpeg", a.contentType);
+        assertEquals(100, a.length);
+        assertEquals(100, reopened.file(a).length());
+
+        MediaCache.Entry b = reopened.get("https://example.com/b.png");
+        assertNull(b.etag);
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", b.lastModified);
+        assertNull(b.contentType);
+        assertEquals(200, b.length);
+
+        assertEquals(300, reopened.stats().size);
+    }
+
+    @Test
+    public void reopeningKeepsTheRecencyOrder() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(cache, "a", 250);
+        put(cache, "b", 250);
+        put(cache, "c", 250);
+        put(cache, "d", 250);
+        cache.recordHit(cache.get("a"));
+        // Rewrites the index in access order
+        cache.remove("d");
+
+        MediaCache reopened = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(reopened, "e", 250);
+        put(reopened, "f", 250);
+
+        assertNull(reopened.get("b"));
+        assertNotNull(reopened.get("a"));
+    }
+
+    @Test
+    public void reopeningDropsMissingAndUnknownFiles() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(cache, "a", 100);
+        put(cache, "b", 100);
+        assertTrue(cache.file(cache.get("a")).delete());
+        File stray = temp.newFile("stray.tmp");
+
+        MediaCache reopened = new MediaCache(temp.getRoot(), MAX_SIZE);
+
+        assertNull(reopened.get("a"));
+        assertNotNull(reopened.get("b"));
+        assertEquals(100, reopened.stats().size);
+        assertFalse(stray.exists());
+    }
+
+    @Test
+    public void reopeningWithASmallerBudgetTrims() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(cache, "a", 250);
+        put(cache, "b", 250);
+
+        MediaCache reopened = new MediaCache(temp.getRoot(), 400);
+
+        assertNull(reopened.get("a"));
+        assertNotNull(reopened.get("b"));
+        assertEquals(1, reopened.stats().evictions);
+    }
+
+    @Test
+    public void onlyCommitsBodiesReadToTheEnd() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        MediaCache.Editor editor = cache.edit("a", "\"a\"", null, null, null, 100);
+        try (BufferedSource source = Okio.buffer(editor.tee(new Buffer().write(new byte[100])))) {
+            source.readByteArray(50);
+        }
+
+        assertNull(cache.get("a"));
+        assertEquals(0, temp.getRoot().list().length);
+    }
+
+    @Test
+    public void refusesWhatItCannotRevalidateOrHold() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        assertNull(cache.edit("a", null, null, "image/jpeg", null, 10));
+        assertNull(cache.edit("a", "\"a\"", null, "image/jpeg", "private, no-store", 10));
+        assertNull(cache.edit("a", "\"a\"", null, "image/jpeg", null, MAX_SIZE / 4 + 1));
+
+        // A body without a Content-Length is cut off once it outgrows the limit
+        write(cache.edit("a", "\"a\"", null, "image/jpeg", null, -1), (int) MAX_SIZE / 4 + 1);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void replacingAnEntryFreesItsSpace() throws IOException {
+        MediaCache cache = new MediaCache(temp.getRoot(), MAX_SIZE);
+        put(cache, "a", 200);
+        write(cache.edit("a", "\"a2\"", null, "image/jpeg", null, 100), 100);
+
+        assertEquals("\"a2\"", cache.get("a").etag);
+        assertEquals(100, cache.stats().size);
+        // The new file plus the index
+        assertEquals(2, temp.getRoot().list().length);
+    }
+
+    private static void put(MediaCache cache, String url, int length) throws IOException {
+        write(cache.edit(url, "\"" + url + "\"", null, "image/jpeg", null, length), length);
+    }
+
+    private static void write(MediaCache.Editor editor, int length) throws IOException {
+        try (BufferedSource source = Okio.buffer(editor.tee(new Buffer().write(new byte[length])))) {
+            source.readAll(Okio.blackhole());
+        }
+    }
+}
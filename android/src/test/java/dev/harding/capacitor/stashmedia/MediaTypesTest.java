@@ -0,0 +1,113 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+public class MediaTypesTest {
+
+    @Test
+    public void sniffsImageSignatures() {
+        assertEquals("image/jpeg", MediaTypes.sniff(ByteString.decodeHex("ffd8ffe000104a464946")));
+        assertEquals("image/png", MediaTypes.sniff(ByteString.decodeHex("89504e470d0a1a0a0000000d49484452")));
+        assertEquals("image/gif", MediaTypes.sniff(ByteString.encodeUtf8("GIF87a\u0001\u0000")));
+        assertEquals("image/gif", MediaTypes.sniff(ByteString.encodeUtf8("GIF89a\u0001\u0000")));
+    }
+
+    @Test
+    public void tellsWebpFromOtherRiffFormats() {
+        assertEquals("image/webp", MediaTypes.sniff(riff("WEBP")));
+        assertNull(MediaTypes.sniff(riff("WAVE")));
+        assertNull(MediaTypes.sniff(riff("AVI ")));
+    }
+
+    @Test
+    public void sniffsFtypBrands() {
+        assertEquals("video/mp4", MediaTypes.sniff(ftyp("isom", "isom", "iso2", "avc1", "mp41")));
+        assertEquals("video/mp4", MediaTypes.sniff(ftyp("mp42", "mp42", "isom")));
+        assertEquals("video/quicktime", MediaTypes.sniff(ftyp("qt  ", "qt  ")));
+        assertEquals("video/3gpp", MediaTypes.sniff(ftyp("3gp4", "3gp4", "isom")));
+        assertEquals("image/heic", MediaTypes.sniff(ftyp("heic", "mif1", "heic")));
+        // The HEVC brand only shows up among the compatible ones
+        assertEquals("image/heic", MediaTypes.sniff(ftyp("mif1", "mif1", "heic")));
+        assertEquals("image/heif", MediaTypes.sniff(ftyp("mif1", "mif1", "miaf")));
+        assertEquals("image/avif", MediaTypes.sniff(ftyp("avif", "avif", "mif1", "miaf")));
+        assertEquals("image/avif", MediaTypes.sniff(ftyp("mif1", "mif1", "avif", "mp41")));
+    }
+
+    @Test
+    public void ignoresBrandsPastTheFtypBox() {
+        ByteString header = new Buffer().write(ftyp("isom", "isom")).writeUtf8("avif").readByteString();
+        assertEquals("video/mp4", MediaTypes.sniff(header));
+    }
+
+    @Test
+    public void sniffsEbmlDocTypes() {
+        assertEquals("video/webm", MediaTypes.sniff(ebml("webm")));
+        assertEquals("video/x-matroska", MediaTypes.sniff(ebml("matroska")));
+        assertNull(MediaTypes.sniff(ebml("other")));
+    }
+
+    @Test
+    public void returnsNullForShortOrUnknownBodies() {
+        assertNull(MediaTypes.sniff(ByteString.EMPTY));
+        assertNull(MediaTypes.sniff(ByteString.decodeHex("ffd8")));
+        assertNull(MediaTypes.sniff(ByteString.encodeUtf8("RIFF")));
+        assertNull(MediaTypes.sniff(ByteString.encodeUtf8("<!DOCTYPE html>")));
+    }
+
+    @Test
+    public void resolvesShortBodiesWithoutConsumingThem() throws IOException {
+        Buffer body = new Buffer().write(ByteString.decodeHex("ffd8ff"));
+        assertEquals("image/jpeg", MediaTypes.resolve(body, "text/plain"));
+        assertEquals(3, body.size());
+
+        Buffer empty = new Buffer();
+        assertEquals("video/mp4", MediaTypes.resolve(empty, "video/mp4"));
+    }
+
+    @Test
+    public void sniffedTypeWinsOverTheHeader() throws IOException {
+        assertEquals("image/png", MediaTypes.resolve(new Buffer().write(ByteString.decodeHex("89504e470d0a1a0a")), "image/jpeg"));
+        assertEquals("video/mp4", MediaTypes.resolve(new Buffer().write(ftyp("isom", "isom")), "application/octet-stream"));
+    }
+
+    @Test
+    public void fallsBackToTheHeaderUnlessItIsGeneric() throws IOException {
+        assertEquals("image/bmp", MediaTypes.resolve(bytes("BM"), "image/bmp; charset=binary"));
+        assertEquals("image/svg+xml", MediaTypes.resolve(bytes("<svg"), " Image/SVG+XML "));
+        assertNull(MediaTypes.resolve(bytes("BM"), "application/octet-stream"));
+        assertNull(MediaTypes.resolve(bytes("BM"), "binary/octet-stream"));
+        assertNull(MediaTypes.resolve(bytes("BM"), ""));
+        assertNull(MediaTypes.resolve(bytes("BM"), null));
+    }
+
+    private static ByteString riff(String format) {
+        return new Buffer().writeUtf8("RIFF").writeIntLe(1024).writeUtf8(format).writeUtf8("VP8 ").readByteString();
+    }
+
+    private static ByteString ftyp(String majorBrand, String... compatibleBrands) {
+        Buffer box = new Buffer()
+            .writeInt(16 + 4 * compatibleBrands.length)
+            .writeUtf8("ftyp")
+            .writeString(majorBrand, StandardCharsets.ISO_8859_1)
+            .writeInt(0);
+        for (String brand : compatibleBrands) {
+            box.writeString(brand, StandardCharsets.ISO_8859_1);
+        }
+        return box.readByteString();
+    }
+
+    private static ByteString ebml(String docType) {
+        return new Buffer().write(ByteString.decodeHex("1a45dfa3a34286810142f7810142f2810442f381084282")).writeUtf8(docType).readByteString();
+    }
+
+    private static Buffer bytes(String text) {
+        return new Buffer().writeUtf8(text);
+    }
+}
@@ -0,0 +1,117 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void smallValuesGetABucketEach() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, Metrics.Histogram.bucket(value));
+            assertEquals(value, Metrics.Histogram.upperBound(value));
+        }
+        assertEquals(8, Metrics.Histogram.bucket(8));
+        assertEquals(8, Metrics.Histogram.upperBound(8));
+    }
+
+    @Test
+    public void bucketsAreContiguousAndCoverTheirValues() {
+        long[] values = { 1, 9, 15, 16, 17, 100, 1000, 4095, 4096, 123_456_789L, 1L << 40, (1L << 62) + 1, Long.MAX_VALUE - 1 };
+        for (long value : values) {
+            int bucket = Metrics.Histogram.bucket(value);
+            assertTrue("upper bound of " + value, Metrics.Histogram.upperBound(bucket) >= value);
+            assertTrue("previous bucket of " + value, Metrics.Histogram.upperBound(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void upperBoundIsWithinAnEighthOfTheValue() {
+        for (long value = 8; value < 100_000; value += 7) {
+            long upperBound = Metrics.Histogram.upperBound(Metrics.Histogram.bucket(value));
+            assertTrue("upper bound of " + value, upperBound - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void largestValueFallsIntoTheLastBucket() {
+        int bucket = Metrics.Histogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.upperBound(bucket));
+        assertTrue(Metrics.Histogram.upperBound(bucket - 1) < Long.MAX_VALUE);
+
+        Metrics.Histogram histogram = new Metrics.Histogram(false);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals((double) Long.MAX_VALUE, histogram.snapshot("max").p99, 0);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Metrics.Histogram histogram = new Metrics.Histogram(false);
+        histogram.record(-5);
+        Metrics.Snapshot snapshot = histogram.snapshot("negative");
+        assertEquals(1, snapshot.count);
+        assertEquals(0, snapshot.min, 0);
+        assertEquals(0, snapshot.max, 0);
+    }
+
+    @Test
+    public void snapshotReportsPercentilesWithinBucketPrecision() {
+        Metrics.Histogram histogram = new Metrics.Histogram(false);
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        Metrics.Snapshot snapshot = histogram.snapshot("values");
+        assertEquals(1000, snapshot.count);
+        assertEquals(500_500, snapshot.sum, 0);
+        assertEquals(500.5, snapshot.mean(), 0);
+        assertEquals(1, snapshot.min, 0);
+        assertEquals(1000, snapshot.max, 0);
+        assertTrue(snapshot.p50 >= 500 && snapshot.p50 <= 500 * 1.125);
+        assertTrue(snapshot.p90 >= 900 && snapshot.p90 <= 900 * 1.125);
+        // Capped at the largest recorded value rather than the bucket's upper bound
+        assertTrue(snapshot.p99 >= 990 && snapshot.p99 <= 1000);
+    }
+
+    @Test
+    public void emptyHistogramReportsZeros() {
+        Metrics.Snapshot snapshot = new Metrics.Histogram(true).snapshot("empty");
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.mean(), 0);
+        assertEquals(0, snapshot.p99, 0);
+    }
+
+    @Test
+    public void durationsAreReportedInMilliseconds() {
+        Metrics metrics = new Metrics();
+        metrics.recordDuration(Metrics.HTTP_CALL, 3_000_000);
+
+        Metrics.Snapshot snapshot = metrics.snapshot().get(0);
+        assertEquals(Metrics.HTTP_CALL, snapshot.name);
+        assertEquals(3, snapshot.sum, 0);
+        assertEquals(3, snapshot.min, 0);
+    }
+
+    @Test
+    public void countersAreKeptApartFromHistograms() {
+        Metrics metrics = new Metrics();
+        metrics.increment(Metrics.HTTP_FAILURES);
+        metrics.increment(Metrics.HTTP_FAILURES);
+        metrics.record(Metrics.HTTP_BYTES, 100);
+
+        Map<String, Long> counters = metrics.counters();
+        assertEquals(1, counters.size());
+        assertEquals(2L, (long) counters.get(Metrics.HTTP_FAILURES));
+        List<Metrics.Snapshot> snapshots = metrics.snapshot();
+        assertEquals(1, snapshots.size());
+        assertEquals(Metrics.HTTP_BYTES, snapshots.get(0).name);
+
+        metrics.reset();
+        assertTrue(metrics.counters().isEmpty());
+        assertTrue(metrics.snapshot().isEmpty());
+    }
+}
@@ -0,0 +1,72 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ResourceGovernorTest {
+
+    private static final long KB = 1024;
+
+    @Test
+    public void busyWriterGivesItsSlotBack() throws IOException {
+        ResourceGovernor governor = new ResourceGovernor(KB, 1, true, new Metrics());
+        ResourceGovernor.Lease lease = governor.acquire(KB, false);
+
+        try {
+            governor.acquire(KB, true);
+            fail();
+        } catch (ResourceGovernor.BusyException e) {
+            assertEquals(0, governor.usage().writers);
+            assertEquals(1, governor.usage().rejected);
+        }
+        lease.close();
+    }
+
+    @Test
+    public void interruptedWriterGivesItsSlotBack() throws Exception {
+        ResourceGovernor governor = new ResourceGovernor(KB, 1, false, new Metrics());
+        ResourceGovernor.Lease lease = governor.acquire(KB, false);
+
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                governor.acquire(KB, true);
+            } catch (IOException e) {
+                error.set(e);
+            }
+        });
+        waiter.start();
+        while (governor.usage().waiting == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, governor.usage().writers);
+
+        waiter.interrupt();
+        waiter.join();
+
+        assertTrue(error.get() instanceof InterruptedIOException);
+        assertEquals(0, governor.usage().writers);
+        lease.close();
+        assertEquals(0, governor.usage().memoryBytes);
+    }
+
+    @Test
+    public void closingALeaseTwiceReleasesOnce() throws IOException {
+        ResourceGovernor governor = new ResourceGovernor(4 * KB, 2, true, new Metrics());
+        ResourceGovernor.Lease lease = governor.acquire(KB, true);
+        ResourceGovernor.Lease other = governor.acquire(KB, true);
+
+        lease.close();
+        lease.close();
+
+        assertEquals(KB, governor.usage().memoryBytes);
+        assertEquals(1, governor.usage().writers);
+        other.close();
+    }
+}
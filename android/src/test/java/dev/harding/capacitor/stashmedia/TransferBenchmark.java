@@ -0,0 +1,294 @@
+package dev.harding.capacitor.stashmedia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.HashingSink;
+import okio.Okio;
+import okio.Sink;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Throughput of the download path against a local {@link MockWebServer}, no device or network
+ * needed. Skipped unless run with {@code -Dstashmedia.benchmark=true}:
+ *
+ * <pre>
+ * ./gradlew testDebugUnitTest -Dstashmedia.benchmark=true --tests '*TransferBenchmark'
+ * </pre>
+ *
+ * Each scenario prints MB/s over all measured iterations, p50/p99 latency per iteration, and bytes
+ * allocated per iteration by the thread consuming the body.
+ */
+public class TransferBenchmark {
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    private static final Size[] SIZES = {
+        new Size("100KB", 100 * KB, 50, 500),
+        new Size("5MB", 5 * MB, 5, 50),
+        new Size("500MB", 500 * MB, 1, 3)
+    };
+
+    private static MockWebServer server;
+    private static OkHttpClient client;
+    private static ExecutorService executor;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Allocation measured on a thread other than the benchmark thread, see fetch
+    private final ThreadLocal<Long> allocated = new ThreadLocal<>();
+
+    private static final class Size {
+
+        final String name;
+        final long bytes;
+        final int warmup;
+        final int iterations;
+
+        Size(String name, long bytes, int warmup, int iterations) {
+            this.name = name;
+            this.bytes = bytes;
+            this.warmup = warmup;
+            this.iterations = iterations;
+        }
+    }
+
+    private interface Iteration {
+        /**
+         * @return bytes moved
+         */
+        long run(int iteration) throws Exception;
+    }
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        assumeTrue("Run with -Dstashmedia.benchmark=true", Boolean.getBoolean("stashmedia.benchmark"));
+
+        // One random block shared by every body; Buffer.copyTo shares segments, so even the 500MB
+        // payload costs about a megabyte of heap
+        byte[] random = new byte[(int) MB];
+        new Random(42).nextBytes(random);
+        Buffer block = new Buffer().write(random);
+
+        server = new MockWebServer();
+        server.setDispatcher(
+            new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    long length = Long.parseLong(request.getRequestUrl().queryParameter("bytes"));
+                    String etag = "\"" + length + "\"";
+                    if (etag.equals(request.getHeader("If-None-Match"))) {
+                        return new MockResponse().setResponseCode(304).setHeader("ETag", etag);
+                    }
+
+                    Buffer body = new Buffer();
+                    for (long remaining = length; remaining > 0; remaining -= MB) {
+                        block.copyTo(body, 0, Math.min(MB, remaining));
+                    }
+                    return new MockResponse().setHeader("Content-Type", "image/jpeg").setHeader("ETag", etag).setBody(body);
+                }
+            }
+        );
+        server.start();
+
+        executor = Executors.newCachedThreadPool();
+        client = new OkHttpClient.Builder().readTimeout(60, TimeUnit.SECONDS).build();
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        if (server != null) {
+            server.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The bare copy loop: response body into a sink that discards everything.
+     */
+    @Test
+    public void copyToBlackhole() throws Exception {
+        for (Size size : SIZES) {
+            measure("copy", size, iteration -> {
+                try (Response response = client.newCall(request(size, iteration)).execute()) {
+                    return Transfer.copy(response.body().source(), Okio.blackhole()).bytes;
+                }
+            });
+        }
+    }
+
+    /**
+     * What a gallery save does minus MediaStore: hash the body while writing it to a file.
+     */
+    @Test
+    public void hashAndStage() throws Exception {
+        File file = temp.newFile();
+        for (Size size : SIZES) {
+            measure("hash+stage", size, iteration -> {
+                try (
+                    Response response = client.newCall(request(size, iteration)).execute();
+                    HashingSink hashing = HashingSink.sha256(Okio.sink(file))
+                ) {
+                    return Transfer.copy(response.body().source(), hashing).bytes;
+                }
+            });
+        }
+    }
+
+    /**
+     * The full fetch path: a cache miss teed into {@link MediaCache} and staged to a file.
+     */
+    @Test
+    public void fetchMiss() throws Exception {
+        MediaFetcher fetcher = fetcher();
+        File file = temp.newFile();
+        for (Size size : SIZES) {
+            measure("fetch miss", size, iteration -> fetch(fetcher, url(size, iteration), file));
+        }
+    }
+
+    /**
+     * A revalidated cache hit: 304 from the server, body served from disk.
+     */
+    @Test
+    public void fetchHit() throws Exception {
+        MediaFetcher fetcher = fetcher();
+        File file = temp.newFile();
+        for (Size size : SIZES) {
+            // Entries over a quarter of the cache are never stored, so there is no hit to measure
+            if (size.bytes > StashMediaConfig.DEFAULT_CACHE_SIZE / 4) {
+                continue;
+            }
+
+            String url = url(size, -1);
+            fetch(fetcher, url, file);
+            measure("fetch hit", size, iteration -> fetch(fetcher, url, file));
+        }
+    }
+
+    private MediaFetcher fetcher() throws IOException {
+        MediaCache cache = new MediaCache(temp.newFolder(), StashMediaConfig.DEFAULT_CACHE_SIZE);
+        return new MediaFetcher(client, cache, temp.newFolder(), executor);
+    }
+
+    /**
+     * Blocks until the body has been staged, returning the thread-local allocation of the consumer
+     * through {@link #allocated}.
+     */
+    private long fetch(MediaFetcher fetcher, String url, File file) throws Exception {
+        CompletableFuture<long[]> result = new CompletableFuture<>();
+        fetcher.fetch(
+            url,
+            null,
+            new StashMedia.MediaCallback() {
+                @Override
+                public void onResponse(MediaResponse media) {
+                    long allocatedBefore = allocatedBytes();
+                    try (Sink sink = Okio.sink(file)) {
+                        long bytes = Transfer.copy(media.source(), sink).bytes;
+                        result.complete(new long[] { bytes, allocatedBytes() - allocatedBefore });
+                    } catch (IOException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        );
+
+        long[] bytesAndAllocated = result.get(5, TimeUnit.MINUTES);
+        allocated.set(bytesAndAllocated[1]);
+        return bytesAndAllocated[0];
+    }
+
+    private void measure(String scenario, Size size, Iteration iteration) throws Exception {
+        for (int i = 0; i < size.warmup; i++) {
+            assertEquals(size.bytes, iteration.run(i));
+        }
+
+        long[] latencies = new long[size.iterations];
+        long totalBytes = 0;
+        long totalAllocated = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < size.iterations; i++) {
+            allocated.remove();
+            long allocatedBefore = allocatedBytes();
+            long iterationStart = System.nanoTime();
+
+            totalBytes += iteration.run(size.warmup + i);
+
+            latencies[i] = System.nanoTime() - iterationStart;
+            Long offThread = allocated.get();
+            totalAllocated += offThread != null ? offThread : allocatedBytes() - allocatedBefore;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+
+        System.out.println(
+            String.format(
+                Locale.US,
+                "%-12s %6s  %8.1f MB/s  p50 %9.2f ms  p99 %9.2f ms  %10d B/op allocated  (%d iterations)",
+                scenario,
+                size.name,
+                totalBytes / (double) MB / (elapsed / 1e9),
+                latencies[percentileIndex(latencies.length, 0.50)] / 1e6,
+                latencies[percentileIndex(latencies.length, 0.99)] / 1e6,
+                totalAllocated / size.iterations,
+                size.iterations
+            )
+        );
+    }
+
+    private static int percentileIndex(int count, double percentile) {
+        return Math.min(count - 1, (int) Math.ceil(count * percentile) - 1);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static Request request(Size size, int iteration) {
+        return new Request.Builder().url(url(size, iteration)).build();
+    }
+
+    /**
+     * A distinct URL per iteration, so that nothing is served from a cache by accident.
+     */
+    private static String url(Size size, int iteration) {
+        return server.url("/media?bytes=" + size.bytes + "&i=" + iteration).toString();
+    }
+}
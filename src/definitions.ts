@@ -1,6 +1,566 @@
+import type { PluginListenerHandle } from '@capacitor/core';
+
+/**
+ * The `StashMedia` section of `capacitor.config`, for typing it in
+ * `capacitor.config.ts`. Every option is optional; anything left out keeps
+ * OkHttp's default.
+ *
+ * Android only.
+ */
+export interface StashMediaConfig {
+  /**
+   * Connect timeout in milliseconds
+   *
+   * @default 10000
+   */
+  connectTimeout?: number;
+  /**
+   * Read timeout in milliseconds
+   *
+   * @default 10000
+   */
+  readTimeout?: number;
+  /**
+   * Write timeout in milliseconds
+   *
+   * @default 10000
+   */
+  writeTimeout?: number;
+  /**
+   * Idle connections kept in the pool
+   *
+   * @default 5
+   */
+  maxIdleConnections?: number;
+  /**
+   * How long idle connections are kept, in milliseconds
+   *
+   * @default 300000
+   */
+  keepAliveDuration?: number;
+  /**
+   * Maximum concurrent requests
+   *
+   * @default 64
+   */
+  maxRequests?: number;
+  /**
+   * Maximum concurrent requests to a single host
+   *
+   * @default 5
+   */
+  maxRequestsPerHost?: number;
+  /**
+   * Allowed protocols in order of preference, must include `http/1.1`
+   *
+   * @default ["h2", "http/1.1"]
+   */
+  protocols?: string[];
+  /**
+   * Size of the on-disk media cache
+   *
+   * @default 100
+   */
+  cacheSizeMb?: number;
+  /**
+   * Disk budget for files staged by `shareImage`
+   *
+   * @default 50
+   */
+  shareCacheSizeMb?: number;
+  /**
+   * Staged share files older than this are removed, in milliseconds
+   *
+   * @default 86400000
+   */
+  shareCacheMaxAge?: number;
+  /**
+   * Memory for decoded `getThumbnail` previews
+   *
+   * @default 16
+   */
+  thumbnailCacheSizeMb?: number;
+  /**
+   * Memory concurrent decodes and transfers may hold, see
+   * `getResourceUsage`
+   *
+   * @default 1/4 of the heap
+   */
+  memoryBudgetMb?: number;
+  /**
+   * Operations writing to disk at the same time
+   *
+   * @default 4
+   */
+  maxConcurrentWriters?: number;
+  /**
+   * Queue operations over budget, or reject them with code `BUSY`
+   *
+   * @default 'wait'
+   */
+  whenBusy?: 'wait' | 'reject';
+  /**
+   * Adapt `saveMediaBatch` downloads per host to measured throughput
+   *
+   * @default true
+   */
+  adaptiveConcurrency?: boolean;
+  /**
+   * Parallel downloads per host before anything has been measured
+   *
+   * @default 3
+   */
+  initialConcurrency?: number;
+  /**
+   * Upper bound for adapted downloads per host, never above
+   * `maxRequestsPerHost`
+   *
+   * @default 5
+   */
+  maxConcurrencyPerHost?: number;
+  /**
+   * How long each chunk of a `saveVideo` download should take, in
+   * milliseconds
+   *
+   * @default 250
+   */
+  chunkTargetMs?: number;
+}
+
 export interface StashMediaPlugin {
-  savePhoto(options: { url: string }): Promise<void>;
-  copyPhotoToClipboard(options: { url: string }): Promise<void>;
-  shareImage(options: { url: string; title: string }): Promise<void>;
-  saveVideo(options: { url: string }): Promise<void>;
+  /**
+   * Pass `dedupe: true` to get back the gallery entry from an earlier save of
+   * the same URL (after a cheap check that it has not changed upstream) or of
+   * identical content, instead of inserting a duplicate.
+   *
+   * `uri` and `existing` are Android only.
+   *
+   * See `TranscodeOptions` to save a smaller or re-encoded copy instead of the
+   * original bytes. Pass an `id` to be able to abort the download with
+   * `cancel()` (Android only).
+   *
+   * On Android the gallery entry stays hidden until the download is complete
+   * and matches its `Content-Length`, and is removed if anything fails. Pass
+   * `sha256` (hex) to also require the original bytes to match that digest; a
+   * mismatch rejects with code `VERIFICATION_FAILED`.
+   *
+   * On Android the format is read from the first bytes of the download rather
+   * than trusted from `Content-Type`. An animation served as MP4 or WebM is
+   * saved among videos, untouched by `TranscodeOptions`; anything that is
+   * neither an image nor a video rejects with code `UNSUPPORTED_MEDIA`.
+   */
+  savePhoto(
+    options: {
+      url: string;
+      id?: string;
+      dedupe?: boolean;
+      sha256?: string;
+    } & TranscodeOptions,
+  ): Promise<SaveResult>;
+  /**
+   * On Android the original image bytes are copied as-is through the app's
+   * FileProvider. Pass `reencode: true` to decode the image and insert it into
+   * the gallery instead (the previous behavior), for paste targets that only
+   * accept MediaStore URIs. A download that is not an image rejects with code
+   * `UNSUPPORTED_MEDIA`.
+   *
+   * Pass an `id` to be able to abort the download with `cancel()`.
+   */
+  copyPhotoToClipboard(options: {
+    url: string;
+    reencode?: boolean;
+    id?: string;
+  }): Promise<void>;
+  /**
+   * See `TranscodeOptions` to share a smaller or re-encoded copy instead of
+   * the original bytes, e.g. `{ maxDimension: 1600, format: 'jpeg' }` for chat
+   * apps.
+   */
+  shareImage(
+    options: { url: string; title: string } & TranscodeOptions,
+  ): Promise<void>;
+
+  /**
+   * Share several images through a single share sheet. Images are downloaded
+   * in parallel (up to `concurrency` at a time, default 3) and the promise
+   * resolves once they are staged and the share sheet opens.
+   *
+   * By default images that fail are left out and reported in `results`; the
+   * call only rejects if none could be staged. With `failFast: true` the first
+   * failure cancels the remaining downloads and rejects.
+   *
+   * Android only.
+   */
+  shareImages(
+    options: {
+      items: ShareItem[];
+      concurrency?: number;
+      failFast?: boolean;
+    } & TranscodeOptions,
+  ): Promise<ShareResult>;
+  /**
+   * On Android the video is downloaded to a temp file first. Dropped
+   * connections are retried with backoff and resume from where they left off,
+   * as does a later call for the same URL. The gallery entry only appears once
+   * the file is complete. Whether the response is a video is read from its
+   * first bytes, falling back to `Content-Type` for unrecognized formats.
+   *
+   * Listen for `progress` events to follow large downloads. Pass an `id` to
+   * tell concurrent downloads apart or to abort with `cancel()`. `dedupe` and
+   * `sha256` work as in `savePhoto`.
+   */
+  saveVideo(options: {
+    url: string;
+    id?: string;
+    dedupe?: boolean;
+    sha256?: string;
+  }): Promise<SaveResult>;
+
+  /**
+   * Save many photos/videos with one call. Downloads run in parallel and the
+   * gallery rows are inserted in a single MediaStore transaction.
+   *
+   * Pass `concurrency` for a fixed number of downloads per host. Otherwise the
+   * number adapts to what each host sustains: it starts at
+   * `initialConcurrency`, grows while throughput holds up and halves when it
+   * drops or downloads fail. See the `transferTuning` event.
+   *
+   * Resolves once every item has settled; check `results` for per-item errors.
+   *
+   * Android only.
+   */
+  saveMediaBatch(options: {
+    items: BatchItem[];
+    concurrency?: number;
+  }): Promise<BatchResult>;
+
+  /**
+   * A small WebP preview of an image, e.g. to show before the user confirms a
+   * save or share. Only as much of the image as the preview needs is decoded,
+   * and previews are kept in memory for repeat requests. The download is
+   * cached, so saving or sharing the same URL afterwards does not fetch it
+   * again unless it changed.
+   *
+   * Returns a `data:` URL by default. With `output: 'file'` the preview is
+   * written to the app's cache instead and `uri` is a `file://` URI; pass it
+   * through `Capacitor.convertFileSrc()` to display it. The file is removed
+   * when the preview drops out of the memory cache.
+   *
+   * Android only.
+   */
+  getThumbnail(options: ThumbnailOptions): Promise<Thumbnail>;
+
+  /**
+   * Queue a save that survives the app being backgrounded or killed. Jobs are
+   * persisted and run by WorkManager once their constraints are met, and are
+   * retried a few times on failure. Listen for `jobComplete` to hear how they
+   * ended, including jobs that finished while the app was not running.
+   *
+   * `interactive` jobs (the default) start as soon as they can; `bulk` jobs run
+   * one at a time, in the order they were queued.
+   *
+   * Android only.
+   */
+  enqueue(options: QueueOptions): Promise<{ id: string }>;
+
+  /**
+   * Queued jobs, including finished ones for about a day.
+   *
+   * Android only.
+   */
+  getQueue(): Promise<{ jobs: QueuedJob[] }>;
+
+  /**
+   * Abort an in-flight operation started with the same `id`. The pending
+   * promise rejects.
+   *
+   * Android only.
+   */
+  cancel(options: { id: string }): Promise<{ canceled: boolean }>;
+
+  /**
+   * Emitted a few times per second while `saveVideo` downloads.
+   *
+   * Android only.
+   */
+  addListener(
+    eventName: 'progress',
+    listenerFunc: (event: ProgressEvent) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Emitted once for every queued job that finished, see `enqueue()`.
+   *
+   * Android only.
+   */
+  addListener(
+    eventName: 'jobComplete',
+    listenerFunc: (event: QueuedJob) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Emitted for every recorded measurement, see `getMetrics()` for the
+   * names. Only sent while a listener is registered.
+   *
+   * Android only.
+   */
+  addListener(
+    eventName: 'metrics',
+    listenerFunc: (event: MetricsEvent) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Emitted whenever the adaptive transfer controller changes the number of
+   * parallel downloads to a host (`saveMediaBatch`) or the chunk size of a
+   * download (`saveVideo`). Meant for debugging and tuning the
+   * `initialConcurrency`, `maxConcurrencyPerHost` and `chunkTargetMs`
+   * settings. Only sent while a listener is registered.
+   *
+   * Android only.
+   */
+  addListener(
+    eventName: 'transferTuning',
+    listenerFunc: (event: TransferTuningEvent) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * What concurrent operations currently hold of the budgets set by
+   * `memoryBudgetMb` and `maxConcurrentWriters`. Operations over budget wait
+   * their turn, or reject with code `BUSY` when `whenBusy` is `'reject'`.
+   *
+   * Android only.
+   */
+  getResourceUsage(): Promise<ResourceUsage>;
+
+  /**
+   * Counters for the on-disk media cache shared by all operations.
+   *
+   * Android only.
+   */
+  getCacheStats(): Promise<CacheStats>;
+
+  /**
+   * Histograms of where time and bytes go, and counters of how often things
+   * happen, collected since the plugin loaded or since the last
+   * `resetMetrics()`:
+   *
+   * - `http.dns`, `http.connect`, `http.tls`: connection setup, in ms
+   * - `http.ttfb`: call start to first response headers, in ms
+   * - `http.download`: response body duration, in ms
+   * - `http.call`: whole call, in ms
+   * - `http.bytes`, `http.throughput`: body size in bytes and bytes/second
+   * - `http.failures`: counter of failed calls
+   * - `mediastore.insert`, `mediastore.write`: gallery row creation and
+   *   writing its content, in ms
+   * - `image.decode`, `image.encode`: bitmap work when re-encoding or
+   *   transcoding, in ms
+   * - `governor.wait`: time spent waiting for memory or a disk writer slot,
+   *   see `getResourceUsage()`, in ms
+   *
+   * Android only.
+   */
+  getMetrics(): Promise<Metrics>;
+
+  /**
+   * Android only.
+   */
+  resetMetrics(): Promise<void>;
+}
+
+/**
+ * Android only. Without any of these the original bytes are used unchanged.
+ * Images that already fit within `maxDimension` and are in the requested
+ * format are also passed through untouched.
+ */
+export interface TranscodeOptions {
+  /** Longest edge in pixels; larger images are scaled down to fit */
+  maxDimension?: number;
+  /**
+   * Output format. Defaults to the original format when it is jpeg, png or
+   * webp, otherwise jpeg. AVIF is not offered, Android has no encoder for it.
+   * Nor for GIF or HEIC, so resizing one without a `format` saves its first
+   * frame as a JPEG, and an animated GIF loses its animation.
+   */
+  format?: 'jpeg' | 'webp' | 'png';
+  /** 0-100, default 85. Ignored for png */
+  quality?: number;
+}
+
+export interface ShareItem {
+  url: string;
+  /** File name shown to the share target, without extension */
+  title: string;
+}
+
+export interface ShareItemResult {
+  url: string;
+  success: boolean;
+  error?: string;
+}
+
+export interface ShareResult {
+  /** In the same order as the requested `items` */
+  results: ShareItemResult[];
+  /** Number of images handed to the share sheet */
+  shared: number;
+  failed: number;
+}
+
+export interface Metrics {
+  /** When collection started, in ms since the epoch */
+  since: number;
+  /** Only metrics with at least one sample are listed */
+  histograms: HistogramSnapshot[];
+  /** Event counts by name; only counters that were incremented are listed */
+  counters: { [name: string]: number };
+}
+
+export interface HistogramSnapshot {
+  name: string;
+  count: number;
+  sum: number;
+  mean: number;
+  min: number;
+  max: number;
+  /** Percentiles are approximate, within about 12% of the true value */
+  p50: number;
+  p90: number;
+  p99: number;
+}
+
+export interface MetricsEvent {
+  name: string;
+  /** In the same unit as the histogram of the same name, or 1 for a counter */
+  value: number;
+}
+
+export interface TransferTuningEvent {
+  kind: 'concurrency' | 'chunkSize';
+  host: string;
+  previous: number;
+  /** Parallel downloads, or bytes per chunk */
+  value: number;
+  /** Throughput measured for the decision */
+  bytesPerSecond: number;
+  /** Share of failed downloads in the window, concurrency only */
+  errorRate?: number;
+  reason: string;
+}
+
+export interface ResourceUsage {
+  /** Bytes reserved by decodes and transfers in progress */
+  memoryBytes: number;
+  memoryBudget: number;
+  /** Operations currently writing to disk */
+  writers: number;
+  maxWriters: number;
+  /** Operations waiting for memory or a writer slot */
+  waiting: number;
+  /** Operations rejected with `BUSY` since the plugin loaded */
+  rejected: number;
+}
+
+export interface CacheStats {
+  /** Requests served from disk after a 304 revalidation */
+  hits: number;
+  /** Requests that downloaded the full body */
+  misses: number;
+  /** Entries dropped to stay within `maxSize` */
+  evictions: number;
+  entryCount: number;
+  /** Bytes currently on disk */
+  size: number;
+  maxSize: number;
+}
+
+export interface BatchItem {
+  url: string;
+  kind: 'photo' | 'video';
+}
+
+export interface BatchItemResult {
+  url: string;
+  kind: 'photo' | 'video';
+  success: boolean;
+  /** Bytes downloaded for this item */
+  bytes: number;
+  /** Content URI of the saved media, when successful */
+  uri?: string;
+  error?: string;
+}
+
+export interface BatchResult {
+  /** In the same order as the requested `items` */
+  results: BatchItemResult[];
+  succeeded: number;
+  failed: number;
+  totalBytes: number;
+  elapsedMs: number;
+  bytesPerSecond: number;
+}
+
+export interface ThumbnailOptions {
+  url: string;
+  /** Longest edge in pixels, default 256 */
+  maxSize?: number;
+  /** Default `dataUrl` */
+  output?: 'dataUrl' | 'file';
+}
+
+export interface Thumbnail {
+  width: number;
+  height: number;
+  /** `data:image/webp;base64,...`, unless `output` was `file` */
+  dataUrl?: string;
+  /** `file://` URI of the preview, when `output` was `file` */
+  uri?: string;
+}
+
+export interface QueueOptions {
+  url: string;
+  kind?: 'photo' | 'video';
+  /** Default `interactive` */
+  priority?: 'interactive' | 'bulk';
+  /** Wait for Wi-Fi or another unmetered network */
+  requiresUnmetered?: boolean;
+  requiresCharging?: boolean;
+  /** Works as in `savePhoto` */
+  dedupe?: boolean;
+  /** Works as in `savePhoto`; a mismatch is retried like any other failure */
+  sha256?: string;
+}
+
+export interface QueuedJob {
+  id: string;
+  url: string;
+  kind: 'photo' | 'video';
+  priority: 'interactive' | 'bulk';
+  state: 'queued' | 'running' | 'succeeded' | 'failed' | 'canceled';
+  /** Runs so far, including retries */
+  attempts: number;
+  /** Progress of a running video download, when its size is known */
+  bytes?: number;
+  totalBytes?: number;
+  /** Content URI of the saved media, when successful */
+  uri?: string;
+  existing?: boolean;
+  error?: string;
+}
+
+export interface ProgressEvent {
+  url: string;
+  id?: string;
+  bytes: number;
+  /** -1 if the server did not send a length */
+  totalBytes: number;
+  bytesPerSecond: number;
+  /** Estimated time remaining, when the total size is known */
+  etaMs?: number;
+}
+
+export interface SaveResult {
+  /** Content URI of the gallery entry */
+  uri?: string;
+  /** Whether an earlier save was returned instead of writing a new entry */
+  existing?: boolean;
 }
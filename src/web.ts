@@ -1,9 +1,19 @@
 import { WebPlugin } from '@capacitor/core';
 
-import type { StashMediaPlugin } from './definitions';
+import type {
+  BatchResult,
+  CacheStats,
+  Metrics,
+  QueuedJob,
+  ResourceUsage,
+  SaveResult,
+  ShareResult,
+  StashMediaPlugin,
+  Thumbnail,
+} from './definitions';
 
 export class StashMediaWeb extends WebPlugin implements StashMediaPlugin {
-  async savePhoto(): Promise<void> {
+  async savePhoto(): Promise<SaveResult> {
     throw new Error('Unsupported on the web');
   }
 
@@ -15,7 +25,47 @@ export class StashMediaWeb extends WebPlugin implements StashMediaPlugin {
     throw new Error('Unsupported on the web');
   }
 
-  async saveVideo(): Promise<void> {
+  async shareImages(): Promise<ShareResult> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async saveVideo(): Promise<SaveResult> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async saveMediaBatch(): Promise<BatchResult> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async getThumbnail(): Promise<Thumbnail> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async enqueue(): Promise<{ id: string }> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async getQueue(): Promise<{ jobs: QueuedJob[] }> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async cancel(): Promise<{ canceled: boolean }> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async getResourceUsage(): Promise<ResourceUsage> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async getCacheStats(): Promise<CacheStats> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async getMetrics(): Promise<Metrics> {
+    throw new Error('Unsupported on the web');
+  }
+
+  async resetMetrics(): Promise<void> {
     throw new Error('Unsupported on the web');
   }
 }